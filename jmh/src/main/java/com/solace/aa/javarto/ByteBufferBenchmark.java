@@ -0,0 +1,87 @@
+package com.solace.aa.javarto;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * ByteBufferBenchmark.java
+ *
+ * The payload copies either side of the API, heap vs direct (-d).  The always-direct
+ * nativeSide buffer stands in for the API's message memory, so attach and detach are what
+ * setBinaryAttachment and getBinaryAttachment pay to copy in and out of it.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteBufferBenchmark {
+
+    @Param({"0", "8", "100", "1000", "10000"})
+    int size;
+
+    @Param({"false", "true"})
+    boolean direct;
+
+    private ByteBuffer payload;  // the publisher's byteBuffer, or the subscriber's rxBuffer
+    private ByteBuffer nativeSide;
+    private final byte[] localCopy = new byte[10000];  // same as IPCPerfSub
+
+    @Setup
+    public void setup() {
+        payload = direct ? ByteBuffer.allocateDirect(10000) : ByteBuffer.allocate(10000);
+        nativeSide = ByteBuffer.allocateDirect(10000);
+        for (int x = 0; x < 10000 / 4; x++) {
+            payload.putInt(x);
+            nativeSide.putInt(x);
+        }
+    }
+
+    /**
+     * Publisher: the payload copied into the message.
+     */
+    @Benchmark
+    public ByteBuffer attach() {
+        payload.limit(size).position(0);
+        nativeSide.clear();
+        nativeSide.put(payload);
+        return nativeSide;
+    }
+
+    /**
+     * Subscriber: the message copied out into rxBuffer, flipped for the listener.
+     */
+    @Benchmark
+    public ByteBuffer detach() {
+        nativeSide.limit(size).position(0);
+        payload.clear();
+        payload.put(nativeSide);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * IPCPerfSub.onMessage reading the whole payload into the JVM.
+     */
+    @Benchmark
+    public byte[] copyToLocal() {
+        payload.limit(size).position(0);
+        payload.get(localCopy, 0, size);
+        return localCopy;
+    }
+}
@@ -0,0 +1,51 @@
+package com.solace.aa.javarto;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * ClockBenchmark.java
+ *
+ * What a timestamp costs.  Every message takes at least two System.nanoTime() calls (the
+ * publisher's send time and the subscriber's receive time), plus one per pass of the
+ * pacing loop.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClockBenchmark {
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Smallest step the clock can show, i.e. the resolution of every latency reported.
+     */
+    @Benchmark
+    public long nanoTimeGranularity() {
+        long start = System.nanoTime();
+        long now;
+        do {
+            now = System.nanoTime();
+        } while (now == start);
+        return now - start;
+    }
+
+    @Benchmark
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,97 @@
+package com.solace.aa.javarto;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * PayloadBenchmark.java
+ *
+ * The per-message bookkeeping: patching the {@link Payload} header on the publisher, reading
+ * it back on the subscriber, and recording the latency.  None of it depends on the payload size.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+    @Param({"false", "true"})
+    boolean direct;
+
+    private ByteBuffer byteBuffer;
+    private long time = 0;
+    private long sequence = 0;
+    private int position = 0;
+    private final long[] latencies = new long[4096];  // a spread of values, so the bucket index isn't always the same
+    private int next = 0;
+    private final LatencyHistogram histogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+    private final IntervalRecorder intervalRecorder = new IntervalRecorder(TimeUnit.HOURS.toNanos(1));
+
+    @Setup
+    public void setup() {
+        byteBuffer = direct ? ByteBuffer.allocateDirect(100) : ByteBuffer.allocate(100);
+        byteBuffer.putInt(Payload.STREAM, 0);
+        Random random = new Random(42);
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = 5000 + (long)(Math.abs(random.nextGaussian()) * 20000);  // ~5-100us
+        }
+    }
+
+    /**
+     * IPCPerfPub.publish, per message.
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        byteBuffer.putLong(Payload.SEND_TIME, time);
+        byteBuffer.putLong(Payload.INTENDED_TIME, time++);
+        byteBuffer.putLong(Payload.SEQUENCE, sequence++);
+        byteBuffer.putInt(Payload.BATCH_POSITION, position++ & 7);  // as if -batch 8
+        return byteBuffer;
+    }
+
+    /**
+     * IPCPerfSub.onMessage, the header fields it reads.
+     */
+    @Benchmark
+    public long decode() {
+        return byteBuffer.getLong(Payload.SEND_TIME)
+                + byteBuffer.getLong(Payload.INTENDED_TIME)
+                + byteBuffer.getInt(Payload.STREAM)
+                + byteBuffer.getInt(Payload.SWEEP_RATE)
+                + byteBuffer.getInt(Payload.FLAGS)
+                + byteBuffer.getLong(Payload.SEQUENCE)
+                + byteBuffer.getInt(Payload.BATCH_POSITION);
+    }
+
+    @Benchmark
+    public LatencyHistogram recordValue() {
+        histogram.recordValue(latencies[next++ & (latencies.length - 1)]);
+        return histogram;
+    }
+
+    /**
+     * The same with the writer side of the interval phaser (-i).
+     */
+    @Benchmark
+    public IntervalRecorder recordInterval() {
+        intervalRecorder.recordValue(latencies[next++ & (latencies.length - 1)]);
+        return intervalRecorder;
+    }
+}
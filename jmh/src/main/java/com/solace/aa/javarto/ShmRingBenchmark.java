@@ -0,0 +1,119 @@
+package com.solace.aa.javarto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * ShmRingBenchmark.java
+ *
+ * The {@link ShmRingTransport} stand-in end to end, inside one JVM: the publisher's send, and
+ * a send waited on until the spinning receive thread has copied it out like IPCPerfSub does.
+ * Take the other benchmarks away from this and what's left is the transport.  Needs 2 free cores.
+ *
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShmRingBenchmark {
+
+    private static final String TOPIC = "jmh";
+
+    @Param({"0", "8", "100", "1000", "10000"})
+    int size;
+
+    @Param({"false", "true"})
+    boolean direct;
+
+    private File dir;
+    private ShmRingTransport subscriber;
+    private ShmRingTransport publisher;
+    private int destination;
+    private ByteBuffer payload;
+    private long sent = 0;
+    private final Receiver receiver = new Receiver();
+
+    static class Receiver implements Transport.Listener {
+
+        private final byte[] localCopy = new byte[10000];
+        volatile long received = 0;  // only written by the receive thread
+
+        @Override
+        public void onMessage(long receivedTime, ByteBuffer payload) {
+            payload.get(localCopy, 0, payload.limit());
+            received++;
+        }
+
+        @Override
+        public void onEvent(String event) {
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        File shm = new File(ShmRingTransport.DEFAULT_DIR);
+        dir = (shm.isDirectory() ? Files.createTempDirectory(shm.toPath(), "ipcperf-jmh") : Files.createTempDirectory("ipcperf-jmh")).toFile();
+        subscriber = new ShmRingTransport(dir.getPath(), 1 << 20, true, direct);
+        subscriber.connect(receiver);
+        subscriber.subscribe(TOPIC);
+        publisher = new ShmRingTransport(dir.getPath(), 1 << 20, true, direct);
+        publisher.connect(null);
+        destination = publisher.createDestination(TOPIC);
+        payload = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+        subscriber.close();
+        dir.delete();
+    }
+
+    /**
+     * Publisher cost while the receive thread keeps up, only blocks if the ring fills.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int send() {
+        if (size >= 8) {
+            payload.putLong(Payload.SEND_TIME, sent++);
+        }
+        return publisher.send(destination, payload);
+    }
+
+    /**
+     * One-way latency: send, then wait until the receive thread has it.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long sendAndReceive() {
+        long target = receiver.received + 1;
+        if (size >= 8) {
+            payload.putLong(Payload.SEND_TIME, System.nanoTime());
+        }
+        publisher.send(destination, payload);
+        while (receiver.received < target) {
+            Thread.onSpinWait();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,66 @@
+package com.solace.aa.javarto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * Affinity.java
+ *
+ * Pins the calling thread to a core, to reproduce production thread placement (e.g. on
+ * isolcpus hosts).  Linux only: it finds the thread's own id through /proc/thread-self and
+ * hands it to taskset, so there's no native library to ship.  That forks a process, so call
+ * it once when the thread starts, never on the hot path.
+ *
+ */
+final class Affinity {
+
+    private Affinity() {
+    }
+
+    /**
+     * @param cpus comma separated core numbers, e.g. "2,3"
+     * @return the core for each index, -1 (don't pin) past the end of the list or when cpus is null
+     */
+    static int[] parseCpus(String cpus, int count) {
+        int[] result = new int[count];
+        String[] list = cpus == null ? new String[0] : cpus.split(",");
+        for (int i=0;i<count;i++) {
+            result[i] = i < list.length ? Integer.parseInt(list[i].trim()) : -1;
+        }
+        return result;
+    }
+
+    /**
+     * Pins the calling thread to the given core.
+     */
+    static void pin(int cpu) {
+        String tid;
+        try {
+            tid = new File("/proc/thread-self").getCanonicalFile().getName();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't find the thread id, CPU affinity needs Linux", e);
+        }
+        try {
+            Process process = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu), tid).redirectErrorStream(true).start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (InputStream in = process.getInputStream()) {
+                byte[] buffer = new byte[256];
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    output.write(buffer, 0, n);
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("taskset failed: " + output.toString().trim());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't run taskset", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted pinning to cpu " + cpu, e);
+        }
+        System.out.printf(" Pinned thread %s (tid %s) to cpu %d%n", Thread.currentThread().getName(), tid, cpu);
+    }
+}
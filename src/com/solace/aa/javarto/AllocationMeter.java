@@ -0,0 +1,126 @@
+package com.solace.aa.javarto;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * AllocationMeter.java
+ *
+ * Backs up the GC-free claim: how many bytes one thread allocated between {@link #start()} and
+ * {@link #stop()}, from HotSpot's per-thread allocation counter, and how many GCs the JVM ran
+ * meanwhile.  Reading the counter allocates a little itself on some JVMs; that much, measured
+ * once up front, is taken off.  Started and stopped again it adds up several windows, e.g. the
+ * measured steps of a sweep.  Only start and stop are synchronized, nothing in between.
+ *
+ */
+public class AllocationMeter {
+
+    /**
+     * How long to leave between the warm-up ending and a window opening: C2 deoptimises the hot
+     * loop when its measured branch is first taken, and re-allocates what it had scalar replaced.
+     */
+    static final long SETTLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final GarbageCollectorMXBean[] GCS = ManagementFactory.getGarbageCollectorMXBeans().toArray(new GarbageCollectorMXBean[0]);
+    private static final long OVERHEAD = calibrate();  // bytes a read of the counter puts on the counter
+
+    private long threadId = -1;  // -1 = not running
+    private long startBytes;
+    private long startGcCount;
+    private long startGcMillis;
+    private long allocatedBytes = 0;
+    private long gcCount = 0;
+    private long gcMillis = 0;
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        ((com.sun.management.ThreadMXBean)threads).setThreadAllocatedMemoryEnabled(true);
+        return (com.sun.management.ThreadMXBean)threads;
+    }
+
+    private static long calibrate() {
+        if (THREADS == null) {
+            return 0;
+        }
+        long id = Thread.currentThread().getId();
+        long overhead = Long.MAX_VALUE;
+        for (int i=0;i<1000;i++) {
+            long before = THREADS.getThreadAllocatedBytes(id);
+            overhead = Math.min(overhead, THREADS.getThreadAllocatedBytes(id) - before);
+        }
+        return overhead;
+    }
+
+    /**
+     * @return false when this JVM can't count allocated bytes per thread
+     */
+    public static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    private static long totalGcCount() {
+        long count = 0;
+        for (int i=0;i<GCS.length;i++) {
+            count += Math.max(0, GCS[i].getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long totalGcMillis() {
+        long millis = 0;
+        for (int i=0;i<GCS.length;i++) {
+            millis += Math.max(0, GCS[i].getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Opens a window on the calling thread.  The GC totals are read first and the thread's counter last, so only that read is in the window.
+     */
+    public synchronized void start() {
+        if (THREADS == null) {
+            return;
+        }
+        startGcCount = totalGcCount();
+        startGcMillis = totalGcMillis();
+        long id = Thread.currentThread().getId();
+        startBytes = THREADS.getThreadAllocatedBytes(id);
+        threadId = id;
+    }
+
+    /**
+     * Closes the window, from the measured thread or any other; does nothing when it isn't open.
+     */
+    public synchronized void stop() {
+        if (threadId < 0) {
+            return;
+        }
+        long bytes = THREADS.getThreadAllocatedBytes(threadId);
+        if (bytes >= 0) {  // -1 once the thread has gone
+            long overhead = threadId == Thread.currentThread().getId() ? OVERHEAD : 0;  // read from another thread, the counter didn't move
+            allocatedBytes += Math.max(0, bytes - startBytes - overhead);
+        }
+        gcCount += totalGcCount() - startGcCount;
+        gcMillis += totalGcMillis() - startGcMillis;
+        threadId = -1;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getGcCount() {
+        return gcCount;
+    }
+
+    public synchronized long getGcMillis() {
+        return gcMillis;
+    }
+}
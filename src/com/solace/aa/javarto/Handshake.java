@@ -0,0 +1,131 @@
+package com.solace.aa.javarto;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Handshake.java
+ *
+ * Start and stop for a publisher/subscriber pair through marker files (-ready file on both), instead
+ * of sleeping and hoping.  The subscriber creates the file once every subscription is in place, and
+ * the publisher waits for it before sending.  When it's finished, the publisher writes file.sent with
+ * how many it sent on each stream, and the subscriber writes file.received once it has them all (or
+ * they stop coming), before the publisher disconnects.  Each file appears whole, by rename.
+ *
+ */
+final class Handshake {
+
+    static final long TIMEOUT_SECS = 60;
+    private static final long POLL_MS = 10;
+
+    private final Path ready;
+    private final Path sent;
+    private final Path received;
+
+    Handshake(String file) {
+        ready = Paths.get(file);
+        sent = Paths.get(file + ".sent");
+        received = Paths.get(file + ".received");
+    }
+
+    /**
+     * Subscriber, before connecting: clears out anything left by an earlier run.
+     */
+    void reset() {
+        try {
+            Files.deleteIfExists(ready);
+            Files.deleteIfExists(sent);
+            Files.deleteIfExists(received);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't clear the handshake files " + ready, e);
+        }
+    }
+
+    void signalReady() {
+        write(ready, "ready\n");
+    }
+
+    /**
+     * Publisher: blocks until the subscriber is ready.
+     */
+    void awaitReady() {
+        if (!await(ready)) {
+            throw new IllegalStateException("No subscriber ready after " + TIMEOUT_SECS + "s, nothing created " + ready);
+        }
+    }
+
+    /**
+     * @param counts how many were sent on each stream
+     */
+    void signalSent(long[] counts) {
+        StringBuilder content = new StringBuilder();
+        for (long count : counts) {
+            content.append(count).append('\n');
+        }
+        write(sent, content.toString());
+    }
+
+    /**
+     * Subscriber: polls for the publisher being finished.
+     * @return how many were sent on each stream, or null if it isn't finished yet
+     */
+    long[] getSent() {
+        if (!Files.exists(sent)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(sent, StandardCharsets.US_ASCII);
+            long[] counts = new long[lines.size()];
+            for (int i=0;i<counts.length;i++) {
+                counts[i] = Long.parseLong(lines.get(i).trim());
+            }
+            return counts;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read " + sent, e);
+        }
+    }
+
+    void signalReceived() {
+        write(received, "received\n");
+    }
+
+    /**
+     * Publisher: blocks until the subscriber has everything, so it can disconnect.
+     * @return false if it gave up waiting
+     */
+    boolean awaitReceived() {
+        return await(received);
+    }
+
+    private static boolean await(Path path) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECS);
+        while (!Files.exists(path)) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(Path path, String content) {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, content.getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write " + path, e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.solace.aa.javarto;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ *
+ * HiccupMeter.java
+ *
+ * Background thread along the lines of jHiccup: it sleeps for a fixed resolution, and however
+ * much longer than that it took to wake up is a hiccup of the platform (safepoint, GC, the OS
+ * scheduling something else), not of the transport.  Hiccups go in their own histogram, and
+ * those over a threshold are kept as [start, end] intervals on the System.nanoTime() clock,
+ * together with the GC events from the GarbageCollectorMXBean notifications, so latency outliers
+ * can be checked against them with {@link #describeOverlap(long, long)}.
+ *
+ */
+public class HiccupMeter implements Runnable {
+
+    static final long DEFAULT_PAUSE_THRESHOLD_NS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final int MAX_PAUSES = 1 << 16;
+    private static final int MAX_GCS = 1 << 12;
+
+    private final long resolutionNanos;
+    private final long pauseThresholdNanos;
+    private final LatencyHistogram histogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+    private final long[] pauseStart = new long[MAX_PAUSES];  // only written by the meter thread
+    private final long[] pauseEnd = new long[MAX_PAUSES];
+    private int numPauses = 0;
+    private long droppedPauses = 0;
+    private final long[] gcStart = new long[MAX_GCS];  // written by the notification thread, guarded by this
+    private final long[] gcEnd = new long[MAX_GCS];
+    private final String[] gcName = new String[MAX_GCS];
+    private int numGcs = 0;
+    private long gcCount = 0;
+    private long gcTotalNanos = 0;
+    private long gcMaxNanos = 0;
+    private final long jvmStartNanos;  // the JVM start time on the System.nanoTime() clock, to the millisecond
+    private final NotificationListener gcListener = this::onGcNotification;
+    private volatile boolean running = true;
+    private Thread thread;
+    private long startTime;
+
+    public HiccupMeter(long resolutionMs, long pauseThresholdNanos) {
+        this.resolutionNanos = TimeUnit.MILLISECONDS.toNanos(resolutionMs);
+        this.pauseThresholdNanos = pauseThresholdNanos;
+        long uptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        jvmStartNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(uptimeMs);
+    }
+
+    public void start() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter)gc).addNotificationListener(gcListener, null, null);
+            }
+        }
+        startTime = System.nanoTime();
+        thread = new Thread(this, "hiccup-meter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the meter, after which everything it recorded can be read.
+     */
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                try {
+                    ((NotificationEmitter)gc).removeNotificationListener(gcListener);
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long before = System.nanoTime();
+            LockSupport.parkNanos(resolutionNanos);
+            long after = System.nanoTime();
+            long hiccup = Math.max(0, after - before - resolutionNanos);
+            histogram.recordValue(hiccup);
+            if (hiccup >= pauseThresholdNanos) {
+                if (numPauses < MAX_PAUSES) {
+                    pauseStart[numPauses] = before + resolutionNanos;
+                    pauseEnd[numPauses] = after;
+                    numPauses++;
+                } else {
+                    droppedPauses++;
+                }
+            }
+        }
+    }
+
+    private void onGcNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+        long start = jvmStartNanos + TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getStartTime());
+        long end = jvmStartNanos + TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getEndTime() + 1);  // GcInfo only has milliseconds, round the end up
+        synchronized (this) {
+            gcCount++;
+            gcTotalNanos += TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration());
+            gcMaxNanos = Math.max(gcMaxNanos, TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+            if (numGcs < MAX_GCS) {
+                gcStart[numGcs] = start;
+                gcEnd[numGcs] = end;
+                gcName[numGcs] = info.getGcName() + " (" + info.getGcCause() + ")";
+                numGcs++;
+            }
+        }
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return the hiccups and GCs that overlap [from, to] on the System.nanoTime() clock, or null for none
+     */
+    public synchronized String describeOverlap(long from, long to) {
+        StringBuilder overlaps = new StringBuilder();
+        for (int i=0;i<numPauses;i++) {
+            if (pauseStart[i] <= to && pauseEnd[i] >= from) {
+                overlaps.append(String.format("hiccup %.0fus at %.3fs, ",(pauseEnd[i]-pauseStart[i])/1000f,(pauseStart[i]-startTime)/1000000000.0));
+            }
+        }
+        for (int i=0;i<numGcs;i++) {
+            if (gcStart[i] <= to && gcEnd[i] >= from) {
+                overlaps.append(String.format("GC %s, ",gcName[i]));
+            }
+        }
+        return overlaps.length() == 0 ? null : overlaps.substring(0, overlaps.length()-2);
+    }
+
+    /**
+     * Prints the hiccup percentiles and the pause and GC totals.
+     */
+    public synchronized void printReport(PrintStream out) {
+        out.printf("Platform hiccups, waking every %d ms (%.0fs sampled):%n",TimeUnit.NANOSECONDS.toMillis(resolutionNanos),histogram.getTotalCount()*resolutionNanos/1000000000.0);
+        out.println("=====================");
+        histogram.printPercentiles(out);
+        out.printf("%d hiccups of %.0fus or more%s, %d GCs taking %.1f ms in total (longest %.1f ms)%n%n",
+                numPauses+droppedPauses,pauseThresholdNanos/1000f,
+                droppedPauses > 0 ? " (only the first "+MAX_PAUSES+" kept)" : "",
+                gcCount,gcTotalNanos/1000000f,gcMaxNanos/1000000f);
+    }
+}
@@ -0,0 +1,141 @@
+package com.solace.aa.javarto;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.solacesystems.solclientj.core.SolclientException;
+import com.solacesystems.solclientj.core.samples.common.AbstractSample;
+import com.solacesystems.solclientj.core.samples.common.ArgumentsParser;
+import com.solacesystems.solclientj.core.samples.common.SessionConfiguration;
+
+/**
+ *
+ * IPCPerfEcho.java
+ *
+ * The responder half of the round-trip test: republishes every message it receives,
+ * untouched, on the reply topic straight from the receive callback.  Start it before
+ * {@link IPCPerfPing}; it runs until the requester goes away, or with -ready until the
+ * requester says it's done.
+ *
+ */
+public class IPCPerfEcho extends AbstractSample {
+
+    private Transport transport;
+    private String topic = "aaa";
+    private String replyTopic = "aaa/reply";
+    private boolean ipcThreadSpinProperty = false;
+    private boolean useDirectByteBuffer = false;
+    private static int replyHandle;
+    private static long numEchoed = 0;
+    private static long numSendErrors = 0;
+    private static CountDownLatch latch = new CountDownLatch(2);  // one for UP_NOTICE, one for when the requester goes offline
+    private Handshake handshake = null;  // -ready
+
+    @Override
+    protected void printUsage(boolean secureSession) {
+        String usage = ArgumentsParser.getCommonUsage(secureSession);
+        System.out.println(usage);
+        // extra parameters
+        System.out.println("\t -topic topic    topic to receive requests on [default:"+ topic + "]");
+        System.out.println("\t -rt topic       topic to echo replies to [default:"+ replyTopic + "]");
+        System.out.println("\t -d              use direct allocate ByteBuffer [default:"+ useDirectByteBuffer + "]");
+        System.out.println("\t -ts             IPC shared memory thread spin hard, otherwise blocking [default:"+ ipcThreadSpinProperty + "]");
+        System.out.println("\t -ready file     create this once echoing, for IPCPerfPing -ready file, and finish when the requester says it's done [default:off]");
+        System.out.println("\t -t transport    solace, or shm for the local shared memory ring buffer (-h/-u ignored) [default:solace]");
+        System.out.println("\t -shmdir dir     directory for the shm ring files [default:"+ ShmRingTransport.DEFAULT_DIR + "]");
+    }
+
+    /**
+     * This is the main method of the sample
+     */
+    @Override
+    protected void run(String[] args, SessionConfiguration config, Level logLevel) throws SolclientException {
+        // parse the extra parameters
+        Map<String, String> cmdLineArgs = config.getArgBag();
+        if (cmdLineArgs.containsKey("-topic")) {
+            topic = cmdLineArgs.get("-topic");
+        }
+        if (cmdLineArgs.containsKey("-rt")) {
+            replyTopic = cmdLineArgs.get("-rt");
+        }
+        if (cmdLineArgs.containsKey("-d")) {
+            useDirectByteBuffer = true;
+        }
+        if (cmdLineArgs.containsKey("-ts")) {
+            ipcThreadSpinProperty = true;
+        }
+        if (cmdLineArgs.containsKey("-ready")) {
+            handshake = new Handshake(cmdLineArgs.get("-ready"));
+            handshake.reset();
+        }
+        System.out.printf("%nWill echo messages from '%s' to '%s' using a %s ByteBuffer%n%n",topic,replyTopic,useDirectByteBuffer?"DirectAllocated":"ArrayBacked");
+        // Connect
+        transport = Transport.fromArgs(cmdLineArgs, getSessionProps(config, 0), ipcThreadSpinProperty, useDirectByteBuffer);
+        transport.connect(new EchoAdapter(transport));
+        // Subscribe
+        System.out.println(" Adding subscription ...");
+        transport.subscribe(topic);
+        // Allocate a Native Topic Destination... with shm this waits for the requester to subscribe to its replies
+        replyHandle = transport.createDestination(replyTopic);
+        System.out.println(" Echoing ...");
+        try {
+            if (handshake != null) {
+                handshake.signalReady();
+                while (latch.getCount() > 0 && handshake.getSent() == null) {  // the requester writes .sent once it has its last reply
+                    latch.await(10,TimeUnit.MILLISECONDS);
+                }
+            } else {
+                latch.await();
+            }
+        } catch (InterruptedException e) {
+            System.err.println("PerfEcho got interrupted");
+        }
+        System.out.printf("%nEchoed %d messages, %d sends did not return OK%n%n",numEchoed,numSendErrors);
+    }
+
+    /**
+     * Invoked when the sample finishes
+     */
+    @Override
+    protected void finish(int status) {
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    static class EchoAdapter implements Transport.Listener {
+
+        private final Transport transport;
+
+        EchoAdapter(Transport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public void onEvent(String event) {
+            System.out.printf("*** Received an Event! %s%n",event);
+            latch.countDown();
+        }
+
+        @Override
+        public void onMessage(long receivedTime, ByteBuffer payload) {
+            if (transport.send(replyHandle, payload) != Transport.OK) {
+                numSendErrors++;
+            }
+            numEchoed++;
+        }
+    }
+
+    /**
+     * Boilerplate, calls {@link #run(String[])
+     * @param args
+     */
+    public static void main(String[] args) {
+        IPCPerfEcho sample = new IPCPerfEcho();
+        sample.run(args);
+    }
+
+}
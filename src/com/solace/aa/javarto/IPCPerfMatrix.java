@@ -0,0 +1,338 @@
+package com.solace.aa.javarto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * IPCPerfMatrix.java
+ *
+ * Runs IPCPerfSub and IPCPerfPub in their own JVMs for every combination of rate, size, direct
+ * or heap ByteBuffer, spinning or blocking IPC thread, topic set and subscription table size,
+ * one pair after the other.  They start and stop through a {@link Handshake} rather than sleeps,
+ * and the ### rows they print go into one CSV per kind of row (e.g. results-sub-rate.csv for the
+ * subscriber's summary), each with a single header and prefixed with the combination it came
+ * from.  Each process's full output is kept in the logs directory.  No Solace library needed for this one, only for the two it runs.
+ * With -rtt it runs IPCPerfEcho and IPCPerfPing instead, for round-trip times.
+ *
+ * <pre>
+ * java com.solace.aa.javarto.IPCPerfMatrix [options] [-- options for both, e.g. -t shm or -h/-u]
+ * </pre>
+ *
+ */
+public class IPCPerfMatrix {
+
+    private static final long READY_POLL_MS = 10;
+    // the axes, outermost first, as they prefix each row of the results
+    private static final String[] AXES = {"Target Size","Buffer","IPC Thread","Topic Set","Topic Depth","Exact Subs","Wildcard Subs","Target Rate"};
+    private static final int SIZE = 0;
+    private static final int BUFFER = 1;
+    private static final int THREAD = 2;
+    private static final int TOPICS = 3;
+    private static final int DEPTH = 4;
+    private static final int EXACT_SUBS = 5;
+    private static final int WILDCARD_SUBS = 6;
+    private static final int RATE = 7;
+
+    private List<String> rates = Arrays.asList("10000");
+    private List<String> sizes = Arrays.asList("100");
+    private List<String> buffers = Arrays.asList("heap", "direct");
+    private List<String> threads = Arrays.asList("block", "spin");
+    private List<String> topics = Arrays.asList("1");
+    private List<String> depths = Arrays.asList("1");
+    private List<String> exactSubs = Arrays.asList("0");
+    private List<String> wildcardSubs = Arrays.asList("0");
+    private String messages = "100000";
+    private String warmup = "50000";
+    private List<String> jvmFlags = new ArrayList<>();
+    private String pubCpus = null;
+    private String subCpus = null;
+    private String results = "ipcperf-results";
+    private File logs = new File("ipcperf-logs");
+    private long timeoutSecs = 300;
+    private boolean rtt = false;
+    private List<String> commonArgs = new ArrayList<>();
+    private final Map<String,PrintStream> outputs = new LinkedHashMap<>();  // side and header -> its CSV
+    private final Map<String,Integer> outputNames = new HashMap<>();  // how many CSVs have each name so far
+
+    static void printUsage() {
+        System.out.println("Usage: IPCPerfMatrix [options] [-- options for both IPCPerfSub and IPCPerfPub]");
+        System.out.println("\t -rates list     comma separated msg/s per stream, 0 for full speed [default:10000]");
+        System.out.println("\t -sizes list     comma separated message sizes [default:100]");
+        System.out.println("\t -buffers list   heap and/or direct ByteBuffers [default:heap,direct]");
+        System.out.println("\t -threads list   block and/or spin for the IPC thread (-ts) [default:block,spin]");
+        System.out.println("\t -topics list    IPCPerfPub/IPCPerfSub -topics, topics each stream publishes over [default:1]");
+        System.out.println("\t -depths list    IPCPerfPub/IPCPerfSub -depth, levels in those topics [default:1]");
+        System.out.println("\t -xsubs list     IPCPerfSub -xsubs, idle exact subscriptions [default:0]");
+        System.out.println("\t -wsubs list     IPCPerfSub -wsubs, idle wildcard subscriptions, not for -t shm [default:0]");
+        System.out.println("\t -n messages     per run, per stream [default:100000]");
+        System.out.println("\t -w warmup       per run, as IPCPerfSub -w, and for the publisher's allocation count when it's a message count [default:50000]");
+        System.out.println("\t -jvm flags      JVM options for both, e.g. \"-Xms1g -Xmx1g -XX:+AlwaysPreTouch\" [default:none]");
+        System.out.println("\t -pubcpu list    IPCPerfPub -cpu, cores for the publisher threads [default:not pinned]");
+        System.out.println("\t -subcpu list    IPCPerfSub -cpu, cores for the receive threads [default:not pinned]");
+        System.out.println("\t -o prefix       the ### rows go to prefix-<side>-<row>.csv, e.g. ipcperf-results-sub-rate.csv [default:ipcperf-results]");
+        System.out.println("\t -logs dir       where each run's full output goes [default:ipcperf-logs]");
+        System.out.println("\t -timeout secs   longest a run can take before both are killed [default:300]");
+        System.out.println("\t -rtt            run IPCPerfEcho and IPCPerfPing for round trips, only the size, buffer, thread and rate lists apply [default:off]");
+    }
+
+    private static List<String> list(String value) {
+        return Arrays.asList(value.split(","));
+    }
+
+    /**
+     * @return false if any run failed
+     */
+    boolean run(String[] args) throws IOException, InterruptedException {
+        for (int i=0;i<args.length;i++) {
+            switch (args[i]) {
+            case "-rates": rates = list(args[++i]); break;
+            case "-sizes": sizes = list(args[++i]); break;
+            case "-buffers": buffers = list(args[++i]); break;
+            case "-threads": threads = list(args[++i]); break;
+            case "-topics": topics = list(args[++i]); break;
+            case "-depths": depths = list(args[++i]); break;
+            case "-xsubs": exactSubs = list(args[++i]); break;
+            case "-wsubs": wildcardSubs = list(args[++i]); break;
+            case "-n": messages = args[++i]; break;
+            case "-w": warmup = args[++i]; break;
+            case "-jvm": jvmFlags = Arrays.asList(args[++i].trim().split("\\s+")); break;
+            case "-pubcpu": pubCpus = args[++i]; break;
+            case "-subcpu": subCpus = args[++i]; break;
+            case "-o": results = args[++i]; break;
+            case "-logs": logs = new File(args[++i]); break;
+            case "-timeout": timeoutSecs = Long.parseLong(args[++i]); break;
+            case "-rtt": rtt = true; break;
+            case "--": commonArgs = Arrays.asList(args).subList(i+1, args.length); i = args.length; break;
+            default:
+                printUsage();
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        for (String buffer : buffers) {
+            if (!buffer.equals("heap") && !buffer.equals("direct")) {
+                throw new IllegalArgumentException("Unknown buffer " + buffer + ", use heap or direct");
+            }
+        }
+        for (String thread : threads) {
+            if (!thread.equals("block") && !thread.equals("spin")) {
+                throw new IllegalArgumentException("Unknown thread mode " + thread + ", use block or spin");
+            }
+        }
+        if (rtt) {
+            if (!topics.equals(Arrays.asList("1")) || !depths.equals(Arrays.asList("1"))
+                    || !exactSubs.equals(Arrays.asList("0")) || !wildcardSubs.equals(Arrays.asList("0"))) {
+                throw new IllegalArgumentException("IPCPerfPing and IPCPerfEcho take no -topics, -depths, -xsubs or -wsubs");
+            }
+            if (pubCpus != null || subCpus != null) {
+                throw new IllegalArgumentException("IPCPerfPing and IPCPerfEcho take no -cpu");
+            }
+        }
+        logs.mkdirs();
+        List<List<String>> axes = Arrays.asList(sizes, buffers, threads, topics, depths, exactSubs, wildcardSubs, rates);
+        int total = 1;
+        for (List<String> axis : axes) {
+            total *= axis.size();
+        }
+        int failed = 0;
+        int[] position = new int[AXES.length];  // counts through every combination, the last axis fastest
+        System.out.printf("%d runs, ### rows to %s-*.csv, output to %s%n",total,results,logs);
+        try {
+            for (int run = 1; run <= total; run++) {
+                String[] combination = new String[AXES.length];
+                StringBuilder description = new StringBuilder();
+                for (int axis = 0; axis < AXES.length; axis++) {
+                    combination[axis] = axes.get(axis).get(position[axis]);
+                    if (axes.get(axis).size() > 1) {
+                        description.append(description.length() > 0 ? ", " : "").append(AXES[axis]).append(' ').append(combination[axis]);
+                    }
+                }
+                System.out.printf("Run %d/%d: %s ... ",run,total,description.length() > 0 ? description : "as given");
+                String result = runOne(run, combination);
+                System.out.println(result);
+                if (!result.startsWith("ok")) {
+                    failed++;
+                }
+                for (int axis = AXES.length-1; axis >= 0 && ++position[axis] == axes.get(axis).size(); axis--) {
+                    position[axis] = 0;
+                }
+            }
+        } finally {
+            for (PrintStream out : outputs.values()) {
+                out.close();
+            }
+        }
+        System.out.printf("%d runs, %d failed%n",total,failed);
+        return failed == 0;
+    }
+
+    /**
+     * One pub/sub pair: the subscriber first, the publisher once it's ready, then both to the end.
+     * With -rtt the echo is the subscriber and the ping the publisher, and the ping is started
+     * straight away: on shm the echo can't open its reply ring, so isn't ready, until the ping
+     * has subscribed, and the ping waits for it with the same -ready file.
+     * @return "ok" and the median, or what went wrong
+     */
+    private String runOne(int run, String[] combination) throws IOException, InterruptedException {
+        String name = String.format("run%03d",run);
+        File ready = new File(logs, name + ".ready");
+        new Handshake(ready.getPath()).reset();
+        String subSide = rtt ? "echo" : "sub";
+        String pubSide = rtt ? "ping" : "pub";
+        File subLog = new File(logs, name + "-" + subSide + ".log");
+        File pubLog = new File(logs, name + "-" + pubSide + ".log");
+        List<String> subArgs = new ArrayList<>(Arrays.asList("-ready", ready.getPath()));
+        List<String> pubArgs = new ArrayList<>(Arrays.asList("-csv", "-ready", ready.getPath(),
+                "-n", messages, "-r", combination[RATE], "-s", combination[SIZE]));
+        if (!rtt) {
+            subArgs.addAll(Arrays.asList("-csv", "-w", warmup,
+                    "-xsubs", combination[EXACT_SUBS], "-wsubs", combination[WILDCARD_SUBS]));
+            if (warmup.startsWith("auto") && !commonArgs.contains("-i")) {
+                subArgs.addAll(Arrays.asList("-i", "1000"));  // -w auto settles on the interval percentiles, which are off by default
+            }
+        }
+        if (warmup.matches("\\d+")) {  // IPCPerfPub and IPCPerfPing -w only take a count, 10s or auto leave it on its default
+            pubArgs.addAll(Arrays.asList("-w", warmup));
+        }
+        for (List<String> sideArgs : Arrays.asList(subArgs, pubArgs)) {
+            if (!rtt) {
+                sideArgs.addAll(Arrays.asList("-topics", combination[TOPICS], "-depth", combination[DEPTH]));
+            }
+            if (combination[BUFFER].equals("direct")) {
+                sideArgs.add("-d");
+            }
+            if (combination[THREAD].equals("spin")) {
+                sideArgs.add("-ts");
+            }
+        }
+        if (subCpus != null) {
+            subArgs.addAll(Arrays.asList("-cpu", subCpus));
+        }
+        if (pubCpus != null) {
+            pubArgs.addAll(Arrays.asList("-cpu", pubCpus));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSecs);
+        Process sub = launch(rtt ? IPCPerfEcho.class : IPCPerfSub.class, subArgs, subLog);
+        Process pub = null;
+        try {
+            while (!rtt && !ready.exists()) {
+                if (!sub.isAlive()) {
+                    return "FAILED, the subscriber exited with " + sub.exitValue() + " before it was ready, see " + subLog;
+                }
+                if (System.nanoTime() > deadline) {
+                    return "FAILED, the subscriber wasn't ready in time, see " + subLog;
+                }
+                Thread.sleep(READY_POLL_MS);
+            }
+            pub = launch(rtt ? IPCPerfPing.class : IPCPerfPub.class, pubArgs, pubLog);
+            if (!pub.waitFor(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return "FAILED, the " + pubSide + " side timed out, see " + pubLog;
+            }
+            if (!sub.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return "FAILED, the " + subSide + " side timed out, see " + subLog;
+            }
+        } finally {
+            sub.destroyForcibly();
+            if (pub != null) {
+                pub.destroyForcibly();
+            }
+            collect(subLog, combination, subSide);
+            collect(pubLog, combination, pubSide);
+        }
+        if (sub.exitValue() != 0 || pub.exitValue() != 0) {
+            return String.format("FAILED, exit status %d (%s) %d (%s), see %s",sub.exitValue(),subSide,pub.exitValue(),pubSide,logs);
+        }
+        File resultLog = rtt ? pubLog : subLog;  // the echo prints no ### row
+        String median = median(resultLog);
+        return median == null ? "FAILED, no ### row, see " + resultLog : "ok, median " + median + " us";
+    }
+
+    private Process launch(Class<?> main, List<String> args, File log) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmFlags);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(main.getName());
+        command.addAll(commonArgs);
+        command.addAll(args);
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    /**
+     * Copies the ### rows of one log into the CSV for their header, which is the last header row
+     * above them.  A header is a row whose first two fields have no digits in them, e.g. "Rate,Size"
+     * but not "Sweep,2000".
+     */
+    private void collect(File log, String[] combination, String side) throws IOException {
+        if (!log.exists()) {
+            return;
+        }
+        PrintStream out = null;
+        for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.startsWith("### ")) {
+                continue;
+            }
+            String row = line.substring(4);
+            String[] fields = row.split(",", 3);
+            boolean header = !fields[0].matches(".*\\d.*") && (fields.length < 2 || !fields[1].matches(".*\\d.*"));
+            if (header) {
+                out = output(side, row);
+            } else if (out != null) {
+                out.println(String.join(",", combination) + "," + row);
+            }
+        }
+        for (PrintStream stream : outputs.values()) {
+            stream.flush();
+        }
+    }
+
+    /**
+     * The CSV for one kind of row, opened with its header the first time.  IPCPerfSub puts the size,
+     * buffer and thread mode into its column names, e.g. "50th%, 100b, Direct Buffer, Thread Spin";
+     * they're taken out, as the same run's row has them in its own columns.
+     */
+    private PrintStream output(String side, String header) throws IOException {
+        header = header.replaceAll("\"([^\",]*), \\d+b, [^\"]*\"", "$1");
+        PrintStream out = outputs.get(side + "|" + header);
+        if (out == null) {
+            String name = results + "-" + side + "-" + header.split("[^A-Za-z0-9]", 2)[0].toLowerCase();
+            int same = outputNames.merge(name, 1, Integer::sum);
+            File file = new File(same == 1 ? name + ".csv" : name + "-" + same + ".csv");  // different columns, e.g. with and without -co
+            out = new PrintStream(file, "UTF-8");
+            out.println(String.join(",", AXES) + "," + header);
+            outputs.put(side + "|" + header, out);
+        }
+        return out;
+    }
+
+    /**
+     * @return the subscriber's or ping's 50th percentile from its ### row, or null if it didn't print one
+     */
+    private static String median(File log) throws IOException {
+        for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("### ") && Character.isDigit(line.charAt(4))) {
+                String[] fields = line.substring(4).split(",");
+                return fields.length > 5 ? fields[5] : null;  // Rate,Size,Direct,Spin,Min,50th or Window,Size,Direct,Spin,Min,50th
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (!new IPCPerfMatrix().run(args)) {
+            System.exit(1);
+        }
+    }
+}
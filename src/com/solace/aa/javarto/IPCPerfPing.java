@@ -0,0 +1,228 @@
+package com.solace.aa.javarto;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.solacesystems.solclientj.core.SolclientException;
+import com.solacesystems.solclientj.core.samples.common.AbstractSample;
+import com.solacesystems.solclientj.core.samples.common.ArgumentsParser;
+import com.solacesystems.solclientj.core.samples.common.SessionConfiguration;
+
+/**
+ *
+ * IPCPerfPing.java
+ *
+ * The requester half of the round-trip test: publishes pings stamped with its own
+ * System.nanoTime(), keeps up to a window of them outstanding, and measures the RTT when
+ * {@link IPCPerfEcho} sends them back.  Only one clock is involved, so the numbers stay
+ * valid between hosts, and the responder's receive-to-send turnaround is included.
+ *
+ */
+public class IPCPerfPing extends AbstractSample {
+
+    private Transport transport;
+    private String topic = "aaa";
+    private String replyTopic = "aaa/reply";
+    private int numOfMessages = 100000;
+    private int msgSize = 100;
+    private int messageRate = 0;  // 0 = as fast as the window allows
+    private int window = 1;
+    private boolean ipcThreadSpinProperty = false;
+    private boolean useDirectByteBuffer = false;
+    private ByteBuffer byteBuffer;
+    private static LatencyHistogram histogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+    private static int warmupMessages = 50000;
+    private static volatile long numReplies = 0;  // only written by the receive thread
+    private static volatile boolean stopped = false;  // replies after this aren't recorded, so the histogram can be read
+    private Handshake handshake = null;  // -ready
+
+    @Override
+    protected void printUsage(boolean secureSession) {
+        String usage = ArgumentsParser.getCommonUsage(secureSession);
+        System.out.println(usage);
+        // extra parameters
+        System.out.println("\t -n messages     number of pings to send [default "+ numOfMessages + "]");
+        System.out.println("\t -r messageRate  how many pings per second, 0 for as fast as the window allows [default "+ messageRate + "]");
+        System.out.println("\t -s messagesize  message size to publish, at least 8 [default "+ msgSize + "]");
+        System.out.println("\t -win pings      how many pings can be outstanding at once [default "+ window + "]");
+        System.out.println("\t -w messages     how many replies to ignore as warm-up [default:"+ warmupMessages + "]");
+        System.out.println("\t -topic topic    topic to send pings on [default:"+ topic + "]");
+        System.out.println("\t -rt topic       topic the responder echoes to [default:"+ replyTopic + "]");
+        System.out.println("\t -d              use direct allocate ByteBuffer [default:"+ useDirectByteBuffer + "]");
+        System.out.println("\t -ts             IPC shared memory thread spin hard, otherwise blocking [default:"+ ipcThreadSpinProperty + "]");
+        System.out.println("\t -ready file     start when IPCPerfEcho -ready file is echoing, rather than sleeping 100 ms, and tell it when done [default:off]");
+        System.out.println("\t -t transport    solace, or shm for the local shared memory ring buffer (-h/-u ignored) [default:solace]");
+        System.out.println("\t -shmdir dir     directory for the shm ring files [default:"+ ShmRingTransport.DEFAULT_DIR + "]");
+    }
+
+    /**
+     * This is the main method of the sample
+     */
+    @Override
+    protected void run(String[] args, SessionConfiguration config, Level logLevel) throws SolclientException {
+        // parse the extra parameters
+        Map<String, String> cmdLineArgs = config.getArgBag();
+        if (cmdLineArgs.containsKey("-n")) {
+            numOfMessages = Integer.parseInt(cmdLineArgs.get("-n"));
+        }
+        if (cmdLineArgs.containsKey("-s")) {
+            msgSize = Math.max(8, Integer.parseInt(cmdLineArgs.get("-s")));
+        }
+        if (cmdLineArgs.containsKey("-r")) {
+            messageRate = Integer.parseInt(cmdLineArgs.get("-r"));
+        }
+        if (cmdLineArgs.containsKey("-win")) {
+            window = Integer.parseInt(cmdLineArgs.get("-win"));
+        }
+        if (cmdLineArgs.containsKey("-w")) {
+            warmupMessages = Integer.parseInt(cmdLineArgs.get("-w"));
+        }
+        if (cmdLineArgs.containsKey("-topic")) {
+            topic = cmdLineArgs.get("-topic");
+        }
+        if (cmdLineArgs.containsKey("-rt")) {
+            replyTopic = cmdLineArgs.get("-rt");
+        }
+        if (cmdLineArgs.containsKey("-ts")) {
+            ipcThreadSpinProperty = true;
+        }
+        if (cmdLineArgs.containsKey("-d")) {
+            useDirectByteBuffer = true;
+        }
+        if (cmdLineArgs.containsKey("-ready")) {
+            handshake = new Handshake(cmdLineArgs.get("-ready"));
+        }
+        byteBuffer = useDirectByteBuffer ? ByteBuffer.allocateDirect(msgSize) : ByteBuffer.allocate(msgSize);
+        // Build the payload once, only the timestamp changes per ping
+        for (int x = 0; x < msgSize / 4; x++) {
+            byteBuffer.putInt(x);
+        }
+        byteBuffer.clear();
+        // Connect
+        transport = Transport.fromArgs(cmdLineArgs, getSessionProps(config, 0), ipcThreadSpinProperty, useDirectByteBuffer);
+        transport.connect(new PingAdapter());
+        // Subscribe to the replies first, so the responder has somewhere to send them
+        System.out.println(" Adding subscription ...");
+        transport.subscribe(replyTopic);
+        // Allocate a Native Topic Destination
+        int topicHandle = transport.createDestination(topic);
+        if (handshake != null) {
+            handshake.awaitReady();
+        } else {
+            try {
+                Thread.sleep(100);  // same as the publisher: give the responder time to set up its reply destination
+            } catch (InterruptedException e) {
+            }
+        }
+        System.out.printf("%nWill ping %d messages of size %d with up to %d outstanding at %s using a %s ByteBuffer%n",
+                numOfMessages,msgSize,window,messageRate > 0 ? messageRate+" msg/s" : "full speed",useDirectByteBuffer?"DirectAllocated":"ArrayBacked");
+        long startTime = System.currentTimeMillis();
+        long startOfNext = System.nanoTime();
+        long delay = messageRate > 0 ? 1000000000/messageRate : 0;
+        long stallTimeout = TimeUnit.SECONDS.toNanos(1);
+        long waitingSince = 0;
+        long time;
+        int messagesSent = 0;
+        int sendErrors = 0;
+        while (messagesSent < numOfMessages) {
+            time = System.nanoTime();
+            if (messagesSent - numReplies >= window) {  // window is full
+                if (waitingSince == 0) {
+                    waitingSince = time;
+                } else if (time - waitingSince > stallTimeout) {
+                    System.out.printf("%nNo reply for %d ms with %d pings outstanding, assuming they were lost%n",TimeUnit.NANOSECONDS.toMillis(stallTimeout),messagesSent - numReplies);
+                    break;
+                }
+                continue;
+            }
+            waitingSince = 0;
+            if (time > startOfNext) {
+                byteBuffer.putLong(0, time);
+                if (transport.send(topicHandle, byteBuffer) != Transport.OK) {
+                    sendErrors++;
+                }
+                messagesSent++;
+                startOfNext += delay;
+            }
+        }
+        // wait for the stragglers
+        long deadline = System.nanoTime() + stallTimeout;
+        while (numReplies < messagesSent && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        long elapsedMs = System.currentTimeMillis()-startTime;
+        // stop recording before reading: late replies after a stall would otherwise land in the histogram while it's printed
+        stopped = true;
+        transport.close();  // and wait for the receive thread to finish any reply it's in the middle of
+        transport = null;
+        long replies = numReplies;  // volatile read, makes the histogram visible
+        if (handshake != null) {
+            handshake.signalSent(new long[] { messagesSent });
+        }
+        System.out.printf("%nSent %d pings and got %d replies in %f seconds = %f round trips/second, %d sends did not return OK%n",
+                messagesSent,replies,elapsedMs/1000f,replies*1000.0/elapsedMs,sendErrors);
+        if (histogram.getTotalCount() == 0) {
+            System.out.println("No measurements... did we send more than the warm-up?");
+            return;
+        }
+        System.out.printf("%nRound trip times ignoring the first %d as warm-up:%n",warmupMessages);
+        System.out.println("=====================");
+        histogram.printPercentiles(System.out);
+        if (cmdLineArgs.containsKey("-csv")) {
+            System.out.printf("### Window,Size,Allocate Direct,Thread Spin,RTT Min,RTT 50th%%,RTT 95th%%,RTT 99th%%,RTT 99.5th%%,RTT 99.9th%%,RTT Max%n");
+            System.out.printf("### %d,%d,%b,%b,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n%n",
+                    window,
+                    msgSize,
+                    useDirectByteBuffer,
+                    ipcThreadSpinProperty,
+                    histogram.getMinValue()/1000f,
+                    histogram.getValueAtPercentile(50.0)/1000f,
+                    histogram.getValueAtPercentile(95.0)/1000f,
+                    histogram.getValueAtPercentile(99.0)/1000f,
+                    histogram.getValueAtPercentile(99.5)/1000f,
+                    histogram.getValueAtPercentile(99.9)/1000f,
+                    histogram.getMaxValue()/1000f);
+        }
+    }
+
+    /**
+     * Invoked when the sample finishes
+     */
+    @Override
+    protected void finish(int status) {
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    static class PingAdapter implements Transport.Listener {
+
+        @Override
+        public void onEvent(String event) {
+            System.out.printf("*** Received an Event! %s%n",event);
+        }
+
+        @Override
+        public void onMessage(long receivedTime, ByteBuffer payload) {
+            if (stopped) {
+                return;
+            }
+            if (numReplies >= warmupMessages) {
+                histogram.recordValue(receivedTime-payload.getLong(0));
+            }
+            numReplies++;  // single writer
+        }
+    }
+
+    /**
+     * Boilerplate, calls {@link #run(String[])
+     * @param args
+     */
+    public static void main(String[] args) {
+        IPCPerfPing sample = new IPCPerfPing();
+        sample.run(args);
+    }
+
+}
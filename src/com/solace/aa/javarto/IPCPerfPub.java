@@ -5,24 +5,11 @@
 package com.solace.aa.javarto;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import com.solacesystems.solclientj.core.SolEnum;
-import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
-import com.solacesystems.solclientj.core.event.MessageCallback;
-import com.solacesystems.solclientj.core.event.SessionEventCallback;
-import com.solacesystems.solclientj.core.handle.ContextHandle;
-import com.solacesystems.solclientj.core.handle.Handle;
-import com.solacesystems.solclientj.core.handle.IPCSupport;
-import com.solacesystems.solclientj.core.handle.MessageHandle;
-import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
-import com.solacesystems.solclientj.core.handle.SessionHandle;
-import com.solacesystems.solclientj.core.resource.Topic;
 import com.solacesystems.solclientj.core.samples.common.AbstractSample;
 import com.solacesystems.solclientj.core.samples.common.ArgumentsParser;
 import com.solacesystems.solclientj.core.samples.common.SampleUtils;
@@ -42,28 +29,58 @@ import com.solacesystems.solclientj.core.samples.common.SessionConfiguration;
  */
 public class IPCPerfPub extends AbstractSample {
 
-	private SessionHandle sessionHandle = Solclient.Allocator.newSessionHandle();
-	private ContextHandle contextHandle = Solclient.Allocator.newContextHandle();
-	private MessageHandle txMessageHandle = Solclient.Allocator.newMessageHandle();
-	private Topic topic = Solclient.Allocator.newTopic("aaa");//SampleUtils.SAMPLE_TOPIC);
-	private NativeDestinationHandle topicHandle = Solclient.Allocator.newNativeDestinationHandle();
+	private Publisher[] publishers = new Publisher[0];
+	private String topic = "aaa";//SampleUtils.SAMPLE_TOPIC;
 	private int numOfMessages = 100000;
 	private int msgSize = 100;
     private int messageRate = 10000;
     private boolean ipcThreadSpinProperty = false;
-	private ByteBuffer byteBuffer;
 	boolean useDirectByteBuffer = false;
+	private int numStreams = 1;
+	private boolean sharedTopic = false;
+	private int numTopics = 1;  // per stream
+	private int topicDepth = 1;
+	private long sweepStart = 0;  // 0 = no sweep
+	private long sweepEnd = 0;
+	private double sweepFactor = 2;
+	private long settleMs = 1000;
+	private long stepMs = 5000;
+	private int[] cpus = new int[0];
+	private WaitStrategy waitStrategy = WaitStrategy.SPIN;
+	private int hiccupMs = 0;  // 0 = no hiccup meter
+	private int batchSize = 1;
+	private long maxAllocatedBytes = -1;  // -1 = don't check
+	private int warmupMessages = 50000;  // sends per stream left out of the allocation check, like IPCPerfSub's -w
+	private boolean allocationFailed = false;
+	private Handshake handshake = null;  // -ready
 
 	@Override
 	protected void printUsage(boolean secureSession) {
 		String usage = ArgumentsParser.getCommonUsage(secureSession);
 		System.out.println(usage);
 		// extra parameters
-		System.out.println("\t -n messages     number messages to send [default "+ numOfMessages + "]");
-        System.out.println("\t -r messageRate  how many messages per second [default "+ messageRate + "]");
+		System.out.println("\t -n messages     number messages to send, per stream [default "+ numOfMessages + "]");
+        System.out.println("\t -r messageRate  how many messages per second, per stream, 0 for as fast as send() takes them [default "+ messageRate + "]");
         System.out.println("\t -s messagesize  message size to publish [default "+ msgSize + "]");
         System.out.println("\t -ts             IPC shared memory thread spin hard, otherwise blocking [default:"+ ipcThreadSpinProperty + "]");
 		System.out.println("\t -d              use direct allocate ByteBuffer [default:"+ useDirectByteBuffer + "]");
+        System.out.println("\t -pubs streams   number of publisher threads, each with its own context and session [default:"+ numStreams + "]");
+        System.out.println("\t -shared         all streams publish on "+ topic + " rather than "+ topic + "/<stream> [default:"+ sharedTopic + "]");
+        System.out.println("\t -topics n       each stream sends round robin over n topics below its own, destinations created up front [default:"+ numTopics + "]");
+        System.out.println("\t -depth levels   levels in those topics below the stream's, e.g. 3 for "+ topic + "/l1/l2/<n>, as IPCPerfSub [default:"+ topicDepth + "]");
+        System.out.println("\t -sweep from:to[:factor]  step the rate geometrically from..to msg/s instead of -r/-n, needs -s "+ Payload.HEADER_SIZE + " or more [default factor:"+ sweepFactor + "]");
+        System.out.println("\t -settle ms      time at each sweep step before measuring [default:"+ settleMs + "]");
+        System.out.println("\t -step ms        time measuring each sweep step [default:"+ stepMs + "]");
+        System.out.println("\t -batch K        send K messages back-to-back on each pacing tick, -r stays in msg/s [default:"+ batchSize + "]");
+        System.out.println("\t -cpu list       cores to pin the publisher threads to, one per stream, e.g. 2,3 [default:not pinned]");
+        System.out.println("\t -wait strategy  how to wait for the next send: spin, onspinwait, yield or park [default:"+ waitStrategy.name().toLowerCase() + "]");
+        System.out.println("\t -hiccup ms      run a hiccup meter waking every ms and report this process's pauses and GCs, 0 for off [default:"+ hiccupMs + "]");
+        System.out.println("\t -maxalloc bytes exit with status 1 if a publisher thread allocated more than this from "+ TimeUnit.NANOSECONDS.toMillis(AllocationMeter.SETTLE_NANOS) + " ms after the warm-up, e.g. 1024 [default:don't check]");
+        System.out.println("\t -w messages     sends per stream to leave out of the allocation count while the JIT settles, sweeps use the settling time [default:"+ warmupMessages + "]");
+        System.out.println("\t -csv            print a ### row with what the publisher threads allocated");
+        System.out.println("\t -ready file     start when IPCPerfSub -ready file has subscribed, and disconnect when it has everything, rather than sleeping 100 ms for each [default:off]");
+        System.out.println("\t -t transport    solace, or shm for the local shared memory ring buffer (-h/-u ignored) [default:solace]");
+        System.out.println("\t -shmdir dir     directory for the shm ring files [default:"+ ShmRingTransport.DEFAULT_DIR + "]");
 	}
 
 	/**
@@ -85,99 +102,377 @@ public class IPCPerfPub extends AbstractSample {
         if (cmdLineArgs.containsKey("-ts")) {
             ipcThreadSpinProperty = true;
         }
+        if (cmdLineArgs.containsKey("-pubs")) {
+            numStreams = Integer.parseInt(cmdLineArgs.get("-pubs"));
+        }
+        if (cmdLineArgs.containsKey("-shared")) {
+            sharedTopic = true;
+        }
+        if (cmdLineArgs.containsKey("-topics")) {
+            numTopics = Integer.parseInt(cmdLineArgs.get("-topics"));
+        }
+        if (cmdLineArgs.containsKey("-depth")) {
+            topicDepth = Integer.parseInt(cmdLineArgs.get("-depth"));
+        }
+        if (numTopics < 1 || topicDepth < 1) {
+            throw new IllegalArgumentException("-topics and -depth start at 1");
+        }
+        if (cmdLineArgs.containsKey("-sweep")) {
+            String[] sweep = cmdLineArgs.get("-sweep").split(":");
+            sweepStart = Long.parseLong(sweep[0]);
+            sweepEnd = Long.parseLong(sweep[1]);
+            if (sweep.length > 2) {
+                sweepFactor = Double.parseDouble(sweep[2]);
+            }
+            if (msgSize < Payload.HEADER_SIZE) {
+                throw new IllegalArgumentException("-sweep needs -s "+ Payload.HEADER_SIZE + " or more to tell the subscriber about the steps");
+            }
+            if (numStreams > 1) {
+                throw new IllegalArgumentException("-sweep only drives a single stream");
+            }
+        }
+        if (cmdLineArgs.containsKey("-settle")) {
+            settleMs = Long.parseLong(cmdLineArgs.get("-settle"));
+        }
+        if (cmdLineArgs.containsKey("-step")) {
+            stepMs = Long.parseLong(cmdLineArgs.get("-step"));
+        }
+        if (cmdLineArgs.containsKey("-wait")) {
+            waitStrategy = WaitStrategy.fromName(cmdLineArgs.get("-wait"));
+        }
+        if (cmdLineArgs.containsKey("-batch")) {
+            batchSize = Integer.parseInt(cmdLineArgs.get("-batch"));
+        }
+        if (cmdLineArgs.containsKey("-hiccup")) {
+            hiccupMs = Integer.parseInt(cmdLineArgs.get("-hiccup"));
+        }
+        if (cmdLineArgs.containsKey("-w")) {
+            warmupMessages = Integer.parseInt(cmdLineArgs.get("-w"));
+        }
+        if (cmdLineArgs.containsKey("-maxalloc")) {
+            maxAllocatedBytes = Long.parseLong(cmdLineArgs.get("-maxalloc"));
+            if (!AllocationMeter.isSupported()) {
+                throw new IllegalArgumentException("-maxalloc needs a JVM that counts allocated bytes per thread");
+            }
+        }
+        if (cmdLineArgs.containsKey("-ready")) {
+            handshake = new Handshake(cmdLineArgs.get("-ready"));
+        }
+        cpus = Affinity.parseCpus(cmdLineArgs.get("-cpu"), numStreams);
 		// Use direct ByteBuffer
 		if (cmdLineArgs.containsKey("-d")) {
 			useDirectByteBuffer = true;
 		}
-		if (useDirectByteBuffer) {
-			byteBuffer = ByteBuffer.allocateDirect(msgSize);
-		} else {
-			byteBuffer = ByteBuffer.allocate(msgSize);
-	    }
-		// Init
-		System.out.println(" Initializing the Java RTO Messaging API...");
-		int rc = Solclient.init(new String[0]);
-		assertReturnCode("Solclient.init()",rc,SolEnum.ReturnCode.OK);
-		// We don't care for any output unless it is an error
-		Solclient.setLogLevel(Level.INFO);
-		// Context
-		System.out.println(" Creating a context ...");
-        rc = Solclient.createContextForHandle(contextHandle,ipcThreadSpinProperty ?
-                new String[]{IPCSupport.CONTEXT_PROPERTIES.IPC_SHM_SPIN,"-1","CONTEXT_CREATE_THREAD","1"} :
-                new String[0]);
-		assertReturnCode("Solclient.createContext()",rc,SolEnum.ReturnCode.OK);
-		// Session
-		System.out.println(" Creating a session ...");
-
-		
-        String[] sessionPropsOrig = getSessionProps(config, 0);
-        // Aaron's mods
-        List<String> sessionProperties = new ArrayList<String>(Arrays.asList(sessionPropsOrig));
-        sessionProperties.add(IPCSupport.SESSION_PROPERTIES.MULTIPOINT);
-        sessionProperties.add(SolEnum.BooleanValue.ENABLE);
-        String[] sessionProps;
-        sessionProps = sessionProperties.toArray(new String[0]);
-
-		
-		CustomEventsAdapter adapter = new CustomEventsAdapter();
-		rc = contextHandle.createSessionForHandle(sessionHandle,sessionProps,adapter,adapter);
-		assertReturnCode("contextHandle.createSession()",rc,SolEnum.ReturnCode.OK);
-        System.out.println("Session Properties: "+Arrays.toString(sessionProps));
-		// Connect
-		System.out.println(" Connecting session ...");
-		rc = sessionHandle.connect();
-		assertReturnCode("sessionHandle.connect()", rc, SolEnum.ReturnCode.OK);
-		// Allocate the message
-		rc = Solclient.createMessageForHandle(txMessageHandle);
-		assertReturnCode("Solclient.createMessage()", rc, SolEnum.ReturnCode.OK);
-		// Allocate a Native Topic Destination
-		rc = Solclient.createNativeDestinationForHandle(topicHandle, topic);
-        assertReturnCode("createNativeDestinationForHandle()",rc,SolEnum.ReturnCode.OK);
-        try {
-            Thread.sleep(100);  // this prevents a race condition with the subscriber so that it has time to finish connecting and subscribe before this guy start publishing
-        } catch (InterruptedException e) {
-        }
-		System.out.printf("%nWill publish %d messages of size %d at a rate of %d msg/s using a %s ByteBuffer%n",
-				numOfMessages,msgSize,messageRate,useDirectByteBuffer?"DirectAllocated":"ArrayBacked");
-		long startTime = System.currentTimeMillis();
-        long startOfNext = System.nanoTime();
-		long time;
-		int messagesSent = 0;
-		long delay = 1000000000/messageRate;
-		while (messagesSent < numOfMessages) {
-            time = System.nanoTime();
-            if (time > startOfNext) {
-    			txMessageHandle.setDestination(topicHandle);
-    			if (msgSize > 0) {
-    				byteBuffer.clear();
-    				// Making up some pay-load ...
-    				byteBuffer.putLong(time);
-    				// Fill the byte buffer, using int ( 4 bytes )
-    				for (int x = 2; x < msgSize / 4; x++) {
-    					byteBuffer.putInt(x);
-    				}
-    				// Top up with bytes
-    				int remainder = msgSize % 4;
-    				for (byte b = 0; b < remainder; b++) {
-    					byteBuffer.put(b);
-    				}
-    				byteBuffer.flip();
-    				txMessageHandle.setBinaryAttachment(byteBuffer);
-    			}
-    			rc = sessionHandle.send(txMessageHandle);
-    			messagesSent++;
-    			startOfNext += delay;  // busy wait
-            }
+		// Connect, one context and session per stream
+		publishers = new Publisher[numStreams];
+		for (int i=0;i<numStreams;i++) {
+		    publishers[i] = new Publisher(i, cpus[i], Transport.fromArgs(cmdLineArgs, getSessionProps(config, 0), ipcThreadSpinProperty, useDirectByteBuffer));
 		}
-		long elapsedMs = System.currentTimeMillis()-startTime;
-		double txRate = (double) numOfMessages / (double) elapsedMs;
-		System.out.printf("%nSent %d messages in %f seconds = %f msg/second (calculated)%n%n",numOfMessages,elapsedMs/1000f,txRate*1000);
-		try {
-            Thread.sleep(100);  // just to make sure the receiving application gets all
-        } catch (InterruptedException e) {
+        if (handshake != null) {
+            handshake.awaitReady();
+        } else {
+            try {
+                Thread.sleep(100);  // this prevents a race condition with the subscriber so that it has time to finish connecting and subscribe before this guy start publishing
+            } catch (InterruptedException e) {
+            }
+        }
+        HiccupMeter hiccupMeter = null;
+        if (hiccupMs > 0) {
+            hiccupMeter = new HiccupMeter(hiccupMs, HiccupMeter.DEFAULT_PAUSE_THRESHOLD_NS);
+            hiccupMeter.start();
+        }
+        if (sweepStart > 0) {
+            publishers[0].sweep();
+        } else {
+    		System.out.printf("%nWill publish %d messages of size %d at %s%s%s%s using a %s ByteBuffer, waiting with %s%n",
+    				numOfMessages,msgSize,messageRate > 0 ? "a rate of "+messageRate+" msg/s" : "full speed",
+    				batchSize > 1 ? String.format(" in batches of %d",batchSize) : "",
+    				numStreams > 1 ? String.format(" on each of %d streams (%s topic)",numStreams,sharedTopic?"shared":"own") : "",
+    				numTopics > 1 || topicDepth > 1 ? String.format(" over %d topics like %s",numTopics,topicsFor(topicFor(topic, 0, numStreams, sharedTopic), numTopics, topicDepth)[0]) : "",
+    				useDirectByteBuffer?"DirectAllocated":"ArrayBacked",waitStrategy.name().toLowerCase());
+    		long startTime = System.nanoTime();
+    		if (numStreams == 1) {
+    		    publishers[0].run();
+    		} else {
+    		    Thread[] threads = new Thread[numStreams];
+    		    for (int i=0;i<numStreams;i++) {
+    		        threads[i] = new Thread(publishers[i], "publisher-"+i);
+    		        threads[i].start();
+    		    }
+    		    for (int i=0;i<numStreams;i++) {
+    		        try {
+    		            threads[i].join();
+    		        } catch (InterruptedException e) {
+    		        }
+    		    }
+    		}
+    		long elapsedNanos = System.nanoTime()-startTime;
+    		if (numStreams > 1) {
+    		    System.out.println();
+    		    for (Publisher publisher : publishers) {
+    		        System.out.printf("  Stream %2d: sent %d messages in %f seconds = %f msg/second, furthest behind the pacing schedule: %.2fus, send would block %d times, failed %d, allocated %d bytes%n",
+    		                publisher.stream,publisher.messagesSent,publisher.elapsedNanos/1000000000f,publisher.messagesSent*1000000000.0/publisher.elapsedNanos,publisher.maxLag/1000f,
+    		                publisher.sendsWouldBlock,publisher.sendsFailed,publisher.allocationMeter.getAllocatedBytes());
+    		    }
+    		}
+    		long totalSent = (long)numOfMessages*numStreams;
+    		double txRate = totalSent * 1000000000.0 / elapsedNanos;
+    		System.out.printf("%nSent %d messages in %f seconds = %f msg/second (calculated)%n",totalSent,elapsedNanos/1000000000f,txRate);
+    		long maxLag = 0;
+    		long sendsWouldBlock = 0;
+    		long sendsFailed = 0;
+    		for (Publisher publisher : publishers) {
+    		    maxLag = Math.max(maxLag, publisher.maxLag);
+    		    sendsWouldBlock += publisher.sendsWouldBlock;
+    		    sendsFailed += publisher.sendsFailed;
+    		}
+    		if (messageRate > 0) {
+    		    System.out.printf("Furthest behind the pacing schedule: %.2fus%n",maxLag/1000f);
+    		}
+    		System.out.printf("Send returned WOULD_BLOCK %d times (retried), and failed %d times (lost)%n%n",sendsWouldBlock,sendsFailed);
+        }
+        printAllocation(cmdLineArgs.containsKey("-csv"));
+        if (hiccupMeter != null) {
+            hiccupMeter.stop();
+            hiccupMeter.printReport(System.out);
+        }
+        if (handshake != null) {
+            long[] counts = new long[numStreams];
+            for (int i=0;i<numStreams;i++) {
+                counts[i] = publishers[i].messagesSent;
+            }
+            handshake.signalSent(counts);
+            if (!handshake.awaitReceived()) {
+                System.out.printf("The subscriber didn't confirm it had everything within %ds, disconnecting anyway%n",Handshake.TIMEOUT_SECS);
+            }
+        } else {
+            try {
+                Thread.sleep(100);  // just to make sure the receiving application gets all
+            } catch (InterruptedException e) {
+            }
         }
 	}
 
+	/**
+	 * What the publisher threads allocated after the warm-up, and the GCs meanwhile, against -maxalloc
+	 */
+	private void printAllocation(boolean csv) {
+	    if (!AllocationMeter.isSupported()) {
+	        System.out.printf("This JVM can't count allocated bytes per thread, so the publisher's GC-free claim is unchecked%n%n");
+	        return;
+	    }
+	    long allocatedBytes = 0;
+	    long maxThreadBytes = 0;
+	    long gcCount = 0;
+	    long gcMillis = 0;
+	    for (Publisher publisher : publishers) {  // the windows overlap, and GCs are for the whole JVM, so those are the worst one's
+	        allocatedBytes += publisher.allocationMeter.getAllocatedBytes();
+	        maxThreadBytes = Math.max(maxThreadBytes, publisher.allocationMeter.getAllocatedBytes());
+	        gcCount = Math.max(gcCount, publisher.allocationMeter.getGcCount());
+	        gcMillis = Math.max(gcMillis, publisher.allocationMeter.getGcMillis());
+	    }
+	    if (sweepStart == 0 && numOfMessages <= warmupMessages) {
+	        System.out.printf("All %d messages were warm-up (-w %d), so nothing to check the publisher's allocation over%n%n",numOfMessages,warmupMessages);
+	    } else {
+	        System.out.printf("Publisher thread%s allocated %d bytes from %d ms after the warm-up, and the JVM ran %d GCs taking %d ms%n%n",
+	                publishers.length > 1 ? "s" : "",allocatedBytes,TimeUnit.NANOSECONDS.toMillis(AllocationMeter.SETTLE_NANOS),gcCount,gcMillis);
+	    }
+	    if (csv) {
+	        System.out.println("### Publisher Allocated Bytes,GCs,GC ms");
+	        System.out.printf("### %d,%d,%d%n%n",allocatedBytes,gcCount,gcMillis);
+	    }
+	    if (maxAllocatedBytes >= 0 && maxThreadBytes > maxAllocatedBytes) {
+	        System.out.printf("FAIL: a publisher thread allocated %d bytes, more than -maxalloc %d%n%n",maxThreadBytes,maxAllocatedBytes);
+	        allocationFailed = true;
+	    }
+	}
+
+	/**
+	 * The topic each stream publishes on, which IPCPerfSub mirrors
+	 */
+	static String topicFor(String topic, int stream, int numStreams, boolean sharedTopic) {
+	    return sharedTopic || numStreams == 1 ? topic : topic + "/" + stream;
+	}
+
+	/**
+	 * The topic set below one stream's topic for -topics/-depth, which IPCPerfSub mirrors:
+	 * streamTopic/l1/../l(depth-1)/n for n in 0..numTopics-1, or just streamTopic for 1 and 1
+	 */
+	static String[] topicsFor(String streamTopic, int numTopics, int depth) {
+	    if (numTopics == 1 && depth == 1) {
+	        return new String[] { streamTopic };
+	    }
+	    StringBuilder prefix = new StringBuilder(streamTopic);
+	    for (int level = 1; level < depth; level++) {
+	        prefix.append("/l").append(level);
+	    }
+	    String[] topics = new String[numTopics];
+	    for (int i=0;i<numTopics;i++) {
+	        topics[i] = prefix + "/" + i;
+	    }
+	    return topics;
+	}
+
+	/**
+	 * One stream: its own transport (context and session), payload buffer and pacing
+	 */
+	class Publisher implements Runnable {
+
+	    final int stream;
+	    final int cpu;  // -1 = not pinned
+	    final Transport transport;
+	    final int[] topicHandles;  // -topics, pre-created so nothing is looked up or allocated per send
+	    int nextTopic = 0;
+	    final ByteBuffer byteBuffer;
+	    long maxLag = 0;  // how far behind the pacing schedule a send went out
+	    long messagesSent = 0;
+	    long elapsedNanos = 0;
+	    long sequence = 0;  // carries on across sweep steps
+	    long sendsWouldBlock = 0;
+	    long sendsFailed = 0;
+	    final AllocationMeter allocationMeter = new AllocationMeter();  // over the publish loops that count
+	    long allocationFrom = Long.MAX_VALUE;  // how many sends into a publish loop the warm-up ends
+	    long allocationFromTs = Long.MAX_VALUE;  // ...and when to start the meter after that
+
+	    Publisher(int stream, int cpu, Transport transport) {
+	        this.stream = stream;
+	        this.cpu = cpu;
+	        this.transport = transport;
+	        transport.connect(null);
+	        // Allocate the Native Topic Destinations
+	        String[] topics = topicsFor(topicFor(topic, stream, numStreams, sharedTopic), numTopics, topicDepth);
+	        topicHandles = new int[topics.length];
+	        for (int i=0;i<topics.length;i++) {
+	            topicHandles[i] = transport.createDestination(topics[i]);
+	        }
+	        if (useDirectByteBuffer) {
+	            byteBuffer = ByteBuffer.allocateDirect(msgSize);
+	        } else {
+	            byteBuffer = ByteBuffer.allocate(msgSize);
+	        }
+	        // Making up some pay-load, once... only the header gets patched per send
+	        // Fill the byte buffer, using int ( 4 bytes )
+	        for (int x = 0; x < msgSize / 4; x++) {
+	            byteBuffer.putInt(x);
+	        }
+	        // Top up with bytes
+	        int remainder = msgSize % 4;
+	        for (byte b = 0; b < remainder; b++) {
+	            byteBuffer.put(b);
+	        }
+	        byteBuffer.flip();
+	        if (msgSize >= Payload.HEADER_SIZE) {
+	            byteBuffer.putInt(Payload.STREAM, stream);
+	        }
+	    }
+
+	    @Override
+	    public void run() {
+	        if (cpu >= 0) {
+	            Affinity.pin(cpu);
+	        }
+	        allocationFrom = warmupMessages;
+	        long startTime = System.nanoTime();
+	        messagesSent = publish(messageRate,numOfMessages,Long.MAX_VALUE,0,0);
+	        elapsedNanos = System.nanoTime()-startTime;
+	        allocationMeter.stop();
+	    }
+
+    	/**
+    	 * Steps through the geometric rate schedule, each step settling first (flagged so the subscriber doesn't measure it)
+    	 */
+    	void sweep() {
+    	    if (cpu >= 0) {
+    	        Affinity.pin(cpu);
+    	    }
+            System.out.printf("%nWill sweep from %d to %d msg/s (x%.2f per step) with messages of size %d, settling %d ms then measuring %d ms per step, using a %s ByteBuffer%n",
+                    sweepStart,sweepEnd,sweepFactor,msgSize,settleMs,stepMs,useDirectByteBuffer?"DirectAllocated":"ArrayBacked");
+            System.out.printf("%n %10s %10s %14s %12s%n","Target","Sent","Achieved msg/s","Max lag us");
+            for (long rate = sweepStart; rate <= sweepEnd; rate = Math.max(rate+1, Math.round(rate*sweepFactor))) {
+                allocationFrom = Long.MAX_VALUE;
+                messagesSent += publish((int)rate,Long.MAX_VALUE,TimeUnit.MILLISECONDS.toNanos(settleMs),(int)rate,Payload.FLAG_SETTLING);
+                maxLag = 0;
+                allocationFrom = 0;
+                long startTime = System.nanoTime();
+                long sent = publish((int)rate,Long.MAX_VALUE,TimeUnit.MILLISECONDS.toNanos(stepMs),(int)rate,0);
+                long elapsed = System.nanoTime()-startTime;
+                allocationMeter.stop();
+                messagesSent += sent;
+                System.out.printf(" %10d %10d %14.0f %12.2f%n",rate,sent,sent*1000000000.0/elapsed,maxLag/1000f);
+            }
+            System.out.println();
+    	}
+
+    	/**
+    	 * The paced send loop: waits (-wait) until each message's slot in the schedule comes up, or doesn't wait at all when rate is 0
+    	 * @return how many were sent before hitting numMessages or running for durationNanos
+    	 */
+    	long publish(int rate, long numMessages, long durationNanos, int sweepRate, int flags) {
+            long startOfNext = System.nanoTime();
+            long endTime = durationNanos == Long.MAX_VALUE ? Long.MAX_VALUE : startOfNext + durationNanos;
+    		long time;
+    		long sent = 0;
+    		boolean paced = rate > 0;
+    		long delay = paced ? 1000000000L*batchSize/rate : 0;  // per tick
+    		if (msgSize >= Payload.HEADER_SIZE) {
+    		    byteBuffer.putInt(Payload.SWEEP_RATE, sweepRate);
+    		    byteBuffer.putInt(Payload.FLAGS, flags);
+    		}
+    		while (sent < numMessages) {
+                time = System.nanoTime();
+                if (!paced) {
+                    startOfNext = time;  // never behind
+                }
+                if (time > startOfNext || !paced) {
+                    if (time >= endTime) {
+                        break;
+                    }
+                    if (time - startOfNext > maxLag) {
+                        maxLag = time - startOfNext;
+                    }
+                    for (int position = 0; position < batchSize && sent < numMessages; position++) {
+                        if (position > 0) {
+                            time = System.nanoTime();
+                        }
+                        if (sent == allocationFrom) {
+                            allocationFromTs = time + AllocationMeter.SETTLE_NANOS;
+                        } else if (time >= allocationFromTs) {
+                            allocationMeter.start();
+                            allocationFromTs = Long.MAX_VALUE;
+                            time = System.nanoTime();
+                        }
+            			if (msgSize >= 8) {
+            				byteBuffer.putLong(Payload.SEND_TIME, time);
+            			}
+            			if (msgSize >= 16) {
+            			    byteBuffer.putLong(Payload.INTENDED_TIME, startOfNext);  // intended send time, so the subscriber can correct for coordinated omission
+            			}
+            			if (msgSize >= Payload.HEADER_SIZE) {
+            			    byteBuffer.putLong(Payload.SEQUENCE, sequence++);
+            			    byteBuffer.putInt(Payload.BATCH_POSITION, position);
+            			}
+            			int topicHandle = topicHandles[nextTopic];
+            			if (++nextTopic == topicHandles.length) {
+            			    nextTopic = 0;
+            			}
+            			int rc;
+            			while ((rc = transport.send(topicHandle, byteBuffer)) == Transport.WOULD_BLOCK) {  // the same message again, the wait shows up in its latency
+            			    sendsWouldBlock++;
+            			}
+            			if (rc != Transport.OK) {
+            			    sendsFailed++;  // its sequence number is gone, so the subscriber counts it lost
+            			}
+            			sent++;
+                    }
+        			startOfNext += delay;  // if we fell behind, the next ones go out back-to-back
+                } else {
+                    waitStrategy.idle(startOfNext - time);
+                }
+    		}
+    		return sent;
+    	}
+	}
+
 	/**
 	 * Invoked when the sample finishes
 	 */
@@ -186,23 +481,11 @@ public class IPCPerfPub extends AbstractSample {
 		/*************************************************************************
 		 * Cleanup
 		 *************************************************************************/
-		finish_DestroyHandle(txMessageHandle, "messageHandle");
-		finish_Disconnect(sessionHandle);
-		finish_DestroyHandle(sessionHandle, "sessionHandle");
-		finish_DestroyHandle(contextHandle, "contextHandle");
-		finish_Solclient();
-	}
-
-	static class CustomEventsAdapter implements MessageCallback,SessionEventCallback {
-
-		@Override
-		public void onEvent(SessionHandle sessionHandle) {
+		for (Publisher publisher : publishers) {
+		    if (publisher != null) {
+		        publisher.transport.close();
+		    }
 		}
-
-		@Override
-		public void onMessage(Handle handle) {
-		}
-
 	}
 
 /**
@@ -212,6 +495,9 @@ public class IPCPerfPub extends AbstractSample {
 	public static void main(String[] args) {
 		IPCPerfPub sample = new IPCPerfPub();
 		sample.run(args);
+		if (sample.allocationFailed) {
+		    System.exit(1);
+		}
 	}
 
 }
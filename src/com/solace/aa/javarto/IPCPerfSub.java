@@ -4,29 +4,16 @@
  */
 package com.solace.aa.javarto;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import com.solacesystems.solclientj.core.SolEnum;
-import com.solacesystems.solclientj.core.SolEnum.SessionEventCode;
-import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
-import com.solacesystems.solclientj.core.event.MessageCallback;
-import com.solacesystems.solclientj.core.event.SessionEventCallback;
-import com.solacesystems.solclientj.core.handle.ContextHandle;
-import com.solacesystems.solclientj.core.handle.Handle;
-import com.solacesystems.solclientj.core.handle.IPCSupport;
-import com.solacesystems.solclientj.core.handle.MessageHandle;
-import com.solacesystems.solclientj.core.handle.MessageSupport;
-import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
-import com.solacesystems.solclientj.core.handle.SessionHandle;
-import com.solacesystems.solclientj.core.resource.Topic;
 import com.solacesystems.solclientj.core.samples.common.AbstractSample;
 import com.solacesystems.solclientj.core.samples.common.ArgumentsParser;
 import com.solacesystems.solclientj.core.samples.common.SampleUtils;
@@ -46,25 +33,40 @@ import com.solacesystems.solclientj.core.samples.common.SessionConfiguration;
  */
 public class IPCPerfSub extends AbstractSample {
 
-	private SessionHandle sessionHandle = Solclient.Allocator.newSessionHandle();
-	private ContextHandle contextHandle = Solclient.Allocator.newContextHandle();
-	private MessageHandle txMessageHandle = Solclient.Allocator.newMessageHandle();
-	private Topic topic = Solclient.Allocator.newTopic("aaa");//SampleUtils.SAMPLE_TOPIC);
-	private NativeDestinationHandle topicHandle = Solclient.Allocator.newNativeDestinationHandle();
-	private static int numReceived = 0;  // total
-    private static ByteBuffer byteBuffer;
-    private static byte[] localCopy = new byte[10000];  // could be big array
-    static {
-        Arrays.fill(localCopy,(byte)32);  // fill with stuff... payloadSize amount will get overwritten
-    }
-    private static int payloadSize = 0;
+	private CustomEventsAdapter[] subscribers = new CustomEventsAdapter[0];
+	private String topic = "aaa";//SampleUtils.SAMPLE_TOPIC;
 	private boolean useDirectByteBuffer = false;
-	private static long[] sentTs = new long[30*300000];  // max number of measurements... 30 sec at 300k msg/s
-    private static long[] receivedTs = new long[30*300000];
+    private static boolean coordinatedOmissionCorrection = false;
+    private static int warmupMessages = 50000;  // half of the publisher's default -n, per subscriber
+    private static long warmupNanos = 0;  // -w by duration instead, from each subscriber's first message
+    private static double warmupTolerance = -1;  // -w auto, how much the interval percentiles may still move
+    private static WarmupDetector warmupDetector = null;
+    private static double kneeFactor = 2.0;
+    private static double kneeRateTolerance = 0.95;
+    private int numStreams = 1;
+    private int numSubscribers = 1;
+    private boolean sharedTopic = false;
+    private int numTopics = 1;  // per stream, as IPCPerfPub -topics
+    private int topicDepth = 1;
+    private boolean wildcardStreams = false;  // one streamTopic/> per stream instead of each of its topics
+    private int extraExact = 0;  // per subscriber, matching nothing that is published
+    private int extraWildcards = 0;
+    private int timeoutSecs = 90;
+    private static int intervalMs = 0;  // 0 = no live reporting
+    private static int hiccupMs = 0;  // 0 = no hiccup meter
+    private static final int TAIL_SAMPLES = 64;
+    private String captureFile = null;
+    private int captureMax = 2000000;
+    private long maxAllocatedBytes = -1;  // -1 = don't check
+    private boolean allocationFailed = false;
+    private Handshake handshake = null;  // -ready
+    private static final long HANDSHAKE_QUIET_NS = TimeUnit.SECONDS.toNanos(1);  // after the publisher is done, how long nothing arrives before the rest count as lost
+    private static final int TAIL_SAMPLES_SHOWN = 10;
+    private static final int BATCH_BUCKETS = 17;  // batch positions 0, 1, 2-3, 4-7... 32768 and up
     private int bucketSize = 1000;  // nanoseconds
     private int bucketNum = 10;
     private boolean ipcThreadSpinProperty = false;
-    private static CountDownLatch latch = new CountDownLatch(2);  // one for UP_NOTICEE, one for "disconnect" or "RECONNECTING" when publisher goes offline
+    private static CountDownLatch latch = new CountDownLatch(2);  // per subscriber, one for UP_NOTICEE, one per publisher for "disconnect" or "RECONNECTING" when it goes offline
 
 	@Override
 	protected void printUsage(boolean secureSession) {
@@ -76,6 +78,28 @@ public class IPCPerfSub extends AbstractSample {
         System.out.println("\t -ts             IPC shared memory thread spin hard, otherwise blocking [default:"+ ipcThreadSpinProperty + "]");
         System.out.println("\t -lg bucketSize  how large each bucket is in nanoseconds [default:"+ bucketSize + "]");
         System.out.println("\t -lb numBuckets  how many buckets to use [default:"+ bucketNum + "]");
+        System.out.println("\t -w warmup       what to ignore as warm-up, per subscriber: a message count, a duration like 10s or 500ms, or auto[:tolerance] to wait until the interval p50 and p99 settle (within "+ WarmupDetector.DEFAULT_TOLERANCE + ") and the JIT goes quiet [default:"+ warmupMessages + "]");
+        System.out.println("\t -pubs streams   how many publisher streams to expect, as given to IPCPerfPub [default:"+ numStreams + "]");
+        System.out.println("\t -subs contexts  number of subscribers, each with its own context and session [default:"+ numSubscribers + "]");
+        System.out.println("\t -shared         every subscriber gets every stream on "+ topic + ", otherwise "+ topic + "/<stream> are dealt out round robin [default:"+ sharedTopic + "]");
+        System.out.println("\t -topics n       topics per stream, as given to IPCPerfPub, each subscribed to exactly [default:"+ numTopics + "]");
+        System.out.println("\t -depth levels   levels in those topics below the stream's, as given to IPCPerfPub [default:"+ topicDepth + "]");
+        System.out.println("\t -wildcard       subscribe to each stream's topics with one <stream topic>/> instead, needs -topics or -depth [default:"+ wildcardStreams + "]");
+        System.out.println("\t -xsubs n        also add n exact subscriptions, -depth deep, that nothing is published on [default:"+ extraExact + "]");
+        System.out.println("\t -wsubs n        also add n wildcard subscriptions ending in />, -depth deep, that nothing published matches [default:"+ extraWildcards + "]");
+        System.out.println("\t -knee factor    sweep steps are saturated when p99 goes over this times the best p99 of the earlier steps, or the achieved rate falls under "+ kneeRateTolerance + " of the target [default:"+ kneeFactor + "]");
+        System.out.println("\t -i ms           print the latency of each interval while running, e.g. 1000, 0 for off [default:"+ intervalMs + "]");
+        System.out.println("\t -hiccup ms      run a hiccup meter waking every ms, and check the "+ TAIL_SAMPLES + " largest latencies against its pauses and GCs, 0 for off [default:"+ hiccupMs + "]");
+        System.out.println("\t -capture file   write every raw sample to this memory-mapped file for SampleAnalyzer, .<subscriber> appended with -subs [default:off]");
+        System.out.println("\t -capturemax n   room for this many samples per subscriber, "+ SampleCapture.RECORD_SIZE + " bytes each [default:"+ captureMax + "]");
+        System.out.println("\t -maxalloc bytes exit with status 1 if a receive thread allocated more than this from "+ TimeUnit.NANOSECONDS.toMillis(AllocationMeter.SETTLE_NANOS) + " ms after the warm-up, e.g. 1024 [default:don't check]");
+        System.out.println("\t -timeout secs   how long to wait for the publisher to finish [default:"+ timeoutSecs + "]");
+        System.out.println("\t -co             also report latency from the publisher's intended send time (coordinated omission corrected), needs -s 16 or more [default:"+ coordinatedOmissionCorrection + "]");
+        System.out.println("\t -cpu list       cores to pin each subscriber's receive thread to, on its first message, e.g. 4,5 [default:not pinned]");
+        System.out.println("\t -ready file     create this once subscribed, for IPCPerfPub -ready file, and finish when the publisher's counts are in rather than on session events [default:off]");
+        System.out.println("\t -t transport    solace, or shm for the local shared memory ring buffer (-h/-u ignored) [default:solace]");
+        System.out.println("\t -shmdir dir     directory for the shm ring files [default:"+ ShmRingTransport.DEFAULT_DIR + "]");
+        System.out.println("\t -shmsize bytes  size of each shm ring, a power of 2 [default:"+ ShmRingTransport.DEFAULT_CAPACITY + "]");
 	}
 
 	//-h listen://127.0.0.1 -u test -n 100000 -s 100 -d true
@@ -89,9 +113,6 @@ public class IPCPerfSub extends AbstractSample {
 		Map<String, String> cmdLineArgs = config.getArgBag();
 		if (cmdLineArgs.containsKey("-d")) {
 		    useDirectByteBuffer = true;
-            byteBuffer = ByteBuffer.allocateDirect(10000);
-		} else {
-			byteBuffer = ByteBuffer.allocate(10000);
 		}
         if (cmdLineArgs.containsKey("-ts")) {
             ipcThreadSpinProperty = true;
@@ -102,121 +123,473 @@ public class IPCPerfSub extends AbstractSample {
         if (cmdLineArgs.containsKey("-lb")) {
             bucketNum = Integer.parseInt(cmdLineArgs.get("-lb"));
         }
+        if (cmdLineArgs.containsKey("-w")) {
+            String warmup = cmdLineArgs.get("-w");
+            if (warmup.startsWith("auto")) {  // auto or auto:tolerance
+                warmupTolerance = warmup.startsWith("auto:") ? Double.parseDouble(warmup.substring(5)) : WarmupDetector.DEFAULT_TOLERANCE;
+            } else if (warmup.endsWith("ms")) {
+                warmupNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(warmup.substring(0, warmup.length()-2)));
+            } else if (warmup.endsWith("s")) {
+                warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(warmup.substring(0, warmup.length()-1)));
+            } else {
+                warmupMessages = Integer.parseInt(warmup);
+            }
+        }
+        if (cmdLineArgs.containsKey("-pubs")) {
+            numStreams = Integer.parseInt(cmdLineArgs.get("-pubs"));
+        }
+        if (cmdLineArgs.containsKey("-subs")) {
+            numSubscribers = Integer.parseInt(cmdLineArgs.get("-subs"));
+        }
+        if (cmdLineArgs.containsKey("-shared")) {
+            sharedTopic = true;
+        }
+        if (cmdLineArgs.containsKey("-topics")) {
+            numTopics = Integer.parseInt(cmdLineArgs.get("-topics"));
+        }
+        if (cmdLineArgs.containsKey("-depth")) {
+            topicDepth = Integer.parseInt(cmdLineArgs.get("-depth"));
+        }
+        if (cmdLineArgs.containsKey("-wildcard")) {
+            wildcardStreams = true;
+        }
+        if (cmdLineArgs.containsKey("-xsubs")) {
+            extraExact = Integer.parseInt(cmdLineArgs.get("-xsubs"));
+        }
+        if (cmdLineArgs.containsKey("-wsubs")) {
+            extraWildcards = Integer.parseInt(cmdLineArgs.get("-wsubs"));
+        }
+        if (numTopics < 1 || topicDepth < 1) {
+            throw new IllegalArgumentException("-topics and -depth start at 1");
+        }
+        if (wildcardStreams && numTopics == 1 && topicDepth == 1) {
+            throw new IllegalArgumentException("-wildcard needs -topics or -depth, a stream on a single topic has nothing below it to match");
+        }
+        if ((wildcardStreams || extraWildcards > 0) && "shm".equals(cmdLineArgs.get("-t"))) {
+            throw new IllegalArgumentException("shm rings only take exact topics, -wildcard and -wsubs need the Solace transport");
+        }
+        if (cmdLineArgs.containsKey("-knee")) {
+            kneeFactor = Double.parseDouble(cmdLineArgs.get("-knee"));
+        }
+        if (cmdLineArgs.containsKey("-timeout")) {
+            timeoutSecs = Integer.parseInt(cmdLineArgs.get("-timeout"));
+        }
+        if (cmdLineArgs.containsKey("-co")) {
+            coordinatedOmissionCorrection = true;
+        }
+        if (cmdLineArgs.containsKey("-i")) {
+            intervalMs = Integer.parseInt(cmdLineArgs.get("-i"));
+        }
+        if (cmdLineArgs.containsKey("-capture")) {
+            captureFile = cmdLineArgs.get("-capture");
+        }
+        if (cmdLineArgs.containsKey("-capturemax")) {
+            captureMax = Integer.parseInt(cmdLineArgs.get("-capturemax"));
+        }
+        if (cmdLineArgs.containsKey("-maxalloc")) {
+            maxAllocatedBytes = Long.parseLong(cmdLineArgs.get("-maxalloc"));
+            if (!AllocationMeter.isSupported()) {
+                throw new IllegalArgumentException("-maxalloc needs a JVM that counts allocated bytes per thread");
+            }
+        }
+        if (cmdLineArgs.containsKey("-hiccup")) {
+            hiccupMs = Integer.parseInt(cmdLineArgs.get("-hiccup"));
+        }
+        if (cmdLineArgs.containsKey("-ready")) {
+            handshake = new Handshake(cmdLineArgs.get("-ready"));
+            handshake.reset();
+        }
+        if (warmupTolerance >= 0) {
+            if (intervalMs <= 0) {
+                throw new IllegalArgumentException("-w auto works from the interval percentiles, it needs -i, e.g. -i 1000");
+            }
+            warmupDetector = new WarmupDetector(intervalMs, warmupTolerance);
+        }
+        if (!sharedTopic && numSubscribers > numStreams) {
+            throw new IllegalArgumentException("Each subscriber needs a stream of its own, use -shared for fan-out");
+        }
+        if (sharedTopic && numSubscribers > 1 && "shm".equals(cmdLineArgs.get("-t"))) {
+            throw new IllegalArgumentException("shm rings are single-consumer, -shared only works with one subscriber");
+        }
         System.out.printf("%nWill subscribe to receive messages into %d buckets of %d ns, using a %s ByteBuffer%n%n",bucketNum,bucketSize,useDirectByteBuffer?"DirectAllocated":"ArrayBacked");
 	
-		// Init
-		System.out.println(" Initializing the Java RTO Messaging API...");
-		int rc = Solclient.init(new String[0]);
-		assertReturnCode("Solclient.init()", rc, SolEnum.ReturnCode.OK);
-		// We don't care for any output unless it is an error
-		Solclient.setLogLevel(Level.INFO);
-		// Context
-		System.out.println(" Creating a context ...");
-		rc = Solclient.createContextForHandle(contextHandle,ipcThreadSpinProperty ?
-                new String[]{IPCSupport.CONTEXT_PROPERTIES.IPC_SHM_SPIN,"-1","CONTEXT_CREATE_THREAD","1"} :
-                new String[0]);
-		assertReturnCode("Solclient.createContext()", rc, SolEnum.ReturnCode.OK);
-		// Session
-		System.out.println(" Creating a session ...");
-
-//		String[] sessionProps = getSessionProps(config, 0);
-        String[] sessionPropsOrig = getSessionProps(config, 0);
-        // Aaron's mods
-        List<String> sessionProperties = new ArrayList<String>(Arrays.asList(sessionPropsOrig));
-        sessionProperties.add(IPCSupport.SESSION_PROPERTIES.MULTIPOINT);
-        sessionProperties.add(SolEnum.BooleanValue.ENABLE);
-        String[] sessionProps;
-        sessionProps = sessionProperties.toArray(new String[0]);
-
-		CustomEventsAdapter adapter = new CustomEventsAdapter();
-		rc = contextHandle.createSessionForHandle(sessionHandle,sessionProps,adapter,adapter);
-		assertReturnCode("contextHandle.createSession()",rc,SolEnum.ReturnCode.OK);
-		System.out.println("Session Properties: "+Arrays.toString(sessionProps));
-		// Connect
-		System.out.println(" Connecting session ...");
-		rc = sessionHandle.connect();
-		assertReturnCode("sessionHandle.connect()",rc,SolEnum.ReturnCode.OK);
-		// Subscribe
-		System.out.println(" Adding subscription ...");
-		rc = sessionHandle.subscribe(topic,SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
-		assertReturnCode("sessionHandle.subscribe()",rc,SolEnum.ReturnCode.OK);
-		// Allocate a Native Topic Destination
-		rc = Solclient.createNativeDestinationForHandle(topicHandle, topic);
-        assertReturnCode("createNativeDestinationForHandle()",rc,SolEnum.ReturnCode.OK);
+		HiccupMeter hiccupMeter = null;
+		if (hiccupMs > 0) {
+		    hiccupMeter = new HiccupMeter(hiccupMs, HiccupMeter.DEFAULT_PAUSE_THRESHOLD_NS);
+		    hiccupMeter.start();
+		}
+		// Connect, one context and session per subscriber, and work out how many publishers will say goodbye to each
+		subscribers = new CustomEventsAdapter[numSubscribers];
+		int[] cpus = Affinity.parseCpus(cmdLineArgs.get("-cpu"), numSubscribers);
+		int expectedEvents = 0;
+		for (int j=0;j<numSubscribers;j++) {
+		    subscribers[j] = new CustomEventsAdapter(j, numStreams);
+		    subscribers[j].cpu = cpus[j];
+		    if (captureFile != null) {
+		        try {
+		            subscribers[j].capture = new SampleCapture(new File(numSubscribers > 1 ? captureFile+"."+j : captureFile), captureMax);
+		        } catch (IOException e) {
+		            throw new IllegalStateException("Can't create the capture file", e);
+		        }
+		    }
+		    for (int i=0;i<numStreams;i++) {
+		        if (sharedTopic || i % numSubscribers == j) {
+		            subscribers[j].addStream(i);
+		            expectedEvents++;
+		        }
+		    }
+		    expectedEvents++;  // UP_NOTICE
+		}
+		latch = new CountDownLatch(expectedEvents);
+		IntervalReporter reporter = null;
+		if (intervalMs > 0) {
+		    IntervalRecorder[] recorders = new IntervalRecorder[numSubscribers];
+		    for (int j=0;j<numSubscribers;j++) {
+		        recorders[j] = subscribers[j].intervalRecorder;
+		    }
+		    reporter = new IntervalReporter(recorders, intervalMs, TimeUnit.HOURS.toNanos(1), System.out, warmupDetector);
+		    reporter.start();
+		}
+		for (CustomEventsAdapter subscriber : subscribers) {
+	        subscriber.transport = Transport.fromArgs(cmdLineArgs, getSessionProps(config, 0), ipcThreadSpinProperty, useDirectByteBuffer);
+	        subscriber.transport.connect(subscriber);
+			// Subscribe
+			System.out.println(" Adding subscription ...");
+			long subscribeStart = System.nanoTime();
+			if (sharedTopic || numStreams == 1) {
+			    subscribeStream(subscriber, topic);
+			} else {
+			    for (int i=0;i<numStreams;i++) {
+			        if (subscriber.streamHistograms[i] != null) {
+			            subscribeStream(subscriber, IPCPerfPub.topicFor(topic, i, numStreams, sharedTopic));
+			        }
+			    }
+			}
+			if (extraExact > 0) {
+			    for (String idle : IPCPerfPub.topicsFor(topic + "/idle" + subscriber.index, extraExact, topicDepth)) {
+			        subscriber.transport.subscribe(idle);
+			        subscriber.subscriptions++;
+			    }
+			}
+			if (extraWildcards > 0) {
+			    for (String idle : IPCPerfPub.topicsFor(topic + "/wild" + subscriber.index, extraWildcards, topicDepth)) {
+			        subscriber.transport.subscribe(idle + "/>");
+			        subscriber.subscriptions++;
+			        subscriber.wildcards++;
+			    }
+			}
+			if (subscriber.subscriptions > 1) {
+			    System.out.printf(" Added %d subscriptions (%d wildcard) in %d ms%n",subscriber.subscriptions,subscriber.wildcards,TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-subscribeStart));
+			}
+		}
 
 		try {
-	        latch.await(90,TimeUnit.SECONDS);
+		    if (handshake != null) {
+		        handshake.signalReady();
+		        awaitPublisherDone(System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSecs));
+		        handshake.signalReceived();
+		    } else {
+		        latch.await(timeoutSecs,TimeUnit.SECONDS);
+		    }
         } catch (InterruptedException e) {
             System.err.println("PerfSub got interrupted");
             System.out.println("** DONE **************************************");
 		}
+		for (CustomEventsAdapter subscriber : subscribers) {
+		    subscriber.allocationMeter.stop();  // if no event closed it, e.g. on a timeout
+		}
+		if (reporter != null) {
+		    reporter.stop();
+		}
+		if (hiccupMeter != null) {
+		    hiccupMeter.stop();
+		}
+		for (CustomEventsAdapter subscriber : subscribers) {
+		    if (subscriber.capture != null) {
+		        subscriber.capture.close();
+		        if (subscriber.capture.getDropped() > 0) {
+		            System.out.printf("Capture file full, %d samples not captured, use a bigger -capturemax%n",subscriber.capture.getDropped());
+		        }
+		    }
+		}
 
-	    System.out.printf("%nReceived %d total messages.  Calculating buckets using 2nd half of measurements...%n%n",numReceived);
-		int[] buckets = new int[bucketNum];
-		Arrays.fill(buckets,0);
-		int over = 0;  // anything outside bucket range
-        long min = receivedTs[0]-sentTs[0];
-        long max = min;
-        long total = 0;
-        double sentT = (sentTs[numReceived-1]-sentTs[0])/1000000000.0;
-        long rate = Math.round(numReceived / sentT);
-		for (int i=numReceived/2;i<numReceived;i++) {  // throw away the first half of measurements (the warm-up)
-		    long delta = receivedTs[i]-sentTs[i];  // e.g. 8234ns = 8.2us
-		    total += delta;
-		    if (delta < min) min = delta;
-		    if (delta > max) max = delta;
-		    if (delta >= (bucketSize*bucketNum)) {
-		        over++;
-		    } else {
-		        buckets[(int)(delta/bucketSize)]++;
+		// Put all the subscribers together
+		LatencyHistogram histogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+		LatencyHistogram correctedHistogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+		long numReceived = 0;
+		long warmupReceived = 0;
+		long firstSentTs = Long.MAX_VALUE;  // of the first message measured
+		long lastSentTs = Long.MIN_VALUE;
+		int payloadSize = 0;
+		long lost = 0;
+		long duplicates = 0;
+		long reordered = 0;
+		long allocatedBytes = 0;
+		long maxThreadBytes = 0;
+		long gcCount = 0;
+		long gcMillis = 0;
+		TailSamples tailSamples = new TailSamples(TAIL_SAMPLES);
+		for (CustomEventsAdapter subscriber : subscribers) {
+		    if (subscriber.sweepRate != 0 || subscriber.lastGoodRate != 0 || subscriber.saturatedRate != 0) {
+		        subscriber.endSweepStep();
+		        String prefix = numSubscribers > 1 ? "Subscriber "+subscriber.index+": " : "";
+		        if (subscriber.saturatedRate == 0) {
+		            System.out.printf("%n%sNo saturation detected, last step %d msg/s was still good%n",prefix,subscriber.lastGoodRate);
+		        } else {
+		            System.out.printf("%n%sLatency/throughput knee: last good step %d msg/s, saturated from %d msg/s%n",prefix,subscriber.lastGoodRate,subscriber.saturatedRate);
+		        }
+		    }
+		    histogram.add(subscriber.histogram);
+		    if (subscriber.tailSamples != null) {
+		        tailSamples.add(subscriber.tailSamples);
+		    }
+		    correctedHistogram.add(subscriber.correctedHistogram);
+		    numReceived += subscriber.numReceived;
+		    warmupReceived += subscriber.measuring ? subscriber.warmupReceived : subscriber.numReceived;
+		    for (int i=0;i<numStreams;i++) {
+		        lost += subscriber.streamLost[i];
+		        duplicates += subscriber.streamDuplicates[i];
+		        reordered += subscriber.streamReordered[i];
+		        if (subscriber.streamHistograms[i] != null) {
+		            subscriber.streamHistograms[i].recordLost(subscriber.streamLost[i]);
+		        }
+		    }
+		    allocatedBytes += subscriber.allocationMeter.getAllocatedBytes();
+		    maxThreadBytes = Math.max(maxThreadBytes, subscriber.allocationMeter.getAllocatedBytes());
+		    gcCount = Math.max(gcCount, subscriber.allocationMeter.getGcCount());  // the JVM's, over overlapping windows
+		    gcMillis = Math.max(gcMillis, subscriber.allocationMeter.getGcMillis());
+		    if (subscriber.measuring) {
+		        firstSentTs = Math.min(firstSentTs, subscriber.firstSentTs);
+		        lastSentTs = Math.max(lastSentTs, subscriber.lastSentTs);
+		        payloadSize = subscriber.payloadSize;
 		    }
-		    sentTs[i] = delta;  // overwrite it, and keep for later
 		}
-		receivedTs = new long[numReceived/2];
-		for (int i=0;i<numReceived/2;i++) {
-		    receivedTs[i] = sentTs[(numReceived/2)+i];  // use the delta that overwrote the sentTs above
+		// Lost messages never arrived, so they go in the tail as infinitely late rather than quietly making it look better
+		histogram.recordLost(lost);
+		correctedHistogram.recordLost(lost);
+		if (numStreams > 1 || numSubscribers > 1) {
+		    System.out.printf("%n %6s %10s %10s %12s %10s %10s %10s %10s %8s %8s %8s%n","Stream","Subscriber","Received","msg/s","50th us","99th us","99.9th us","Max us","Lost","Dups","Reorder");
+		    for (CustomEventsAdapter subscriber : subscribers) {
+		        for (int i=0;i<numStreams;i++) {
+		            LatencyHistogram streamHistogram = subscriber.streamHistograms[i];
+		            if (streamHistogram != null) {
+		                long count = subscriber.streamCounts[i];
+		                long span = subscriber.streamLastReceivedTs[i]-subscriber.streamFirstReceivedTs[i];
+		                System.out.printf(" %6d %10d %10d %12.0f %10.2f %10.2f %10.2f %10.2f %8d %8d %8d%n",i,subscriber.index,count,
+		                        count > 1 ? (count-1)*1000000000.0/span : 0,
+		                        streamHistogram.getValueAtPercentile(50.0)/1000f,
+		                        streamHistogram.getValueAtPercentile(99.0)/1000f,
+		                        streamHistogram.getValueAtPercentile(99.9)/1000f,
+		                        streamHistogram.getMaxValue()/1000f,
+		                        subscriber.streamLost[i],
+		                        subscriber.streamDuplicates[i],
+		                        subscriber.streamReordered[i]);
+		            }
+		        }
+		    }
 		}
-		Arrays.sort(receivedTs);  // sort the whole thing, so that we can find the various percentiles
+	    System.out.printf("%nReceived %d total messages.  Calculating buckets ignoring the first %d as warm-up (%s%s)...%n%n",numReceived,warmupReceived,
+	            warmupDetector != null ? "auto" : warmupNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(warmupNanos)+" ms" : warmupMessages+" messages",numSubscribers > 1 ? " of each subscriber" : "");
+	    if (payloadSize >= Payload.HEADER_SIZE) {
+	        System.out.printf("Lost %d, duplicates %d, out of order %d.  Lost messages count as %.0f seconds in the percentiles.%n%n",
+	                lost,duplicates,reordered,histogram.getHighestTrackableValue()/1000000000.0);
+	    }
+	    if (AllocationMeter.isSupported()) {
+	        System.out.printf("Receive thread%s allocated %d bytes from %d ms after the warm-up, and the JVM ran %d GCs taking %d ms%n%n",
+	                numSubscribers > 1 ? "s" : "",allocatedBytes,TimeUnit.NANOSECONDS.toMillis(AllocationMeter.SETTLE_NANOS),gcCount,gcMillis);
+	        if (maxAllocatedBytes >= 0 && maxThreadBytes > maxAllocatedBytes) {
+	            System.out.printf("FAIL: a receive thread allocated %d bytes, more than -maxalloc %d%n%n",maxThreadBytes,maxAllocatedBytes);
+	            allocationFailed = true;
+	        }
+	    } else {
+	        System.out.printf("This JVM can't count allocated bytes per thread, so the receive side's GC-free claim is unchecked%n%n");
+	    }
+        long measured = histogram.getTotalCount();
+        if (measured == 0) {
+            System.out.println("No measurements... did the publisher send more than the warm-up?");
+            return;
+        }
+        long min = histogram.getMinValue();
+        double sentT = (lastSentTs-firstSentTs)/1000000000.0;
+        long rate = Math.round((numReceived - warmupReceived) / sentT);  // only over what was measured
         if (cmdLineArgs.containsKey("-csv")) {
-            System.out.printf("### Rate,Size,Allocate Direct,Thread Spin,\"Min, %db, %s, %s\",\"50th%%, %db, %s, %s\",\"95th%%, %db, %s, %s\",\"99th%%, %db, %s, %s\",\"99.5th%%, %db, %s, %s\",\"99.9th%%, %db, %s, %s\"%n",
+            CustomEventsAdapter largest = subscribers[0];  // the session with the biggest subscription table
+            for (CustomEventsAdapter subscriber : subscribers) {
+                if (subscriber.subscriptions > largest.subscriptions) {
+                    largest = subscriber;
+                }
+            }
+            System.out.printf("### Rate,Size,Allocate Direct,Thread Spin,\"Min, %db, %s, %s\",\"50th%%, %db, %s, %s\",\"95th%%, %db, %s, %s\",\"99th%%, %db, %s, %s\",\"99.5th%%, %db, %s, %s\",\"99.9th%%, %db, %s, %s\"%s%n",
                     payloadSize,useDirectByteBuffer ? "Direct Buffer" : "Non-Direct Buffer",ipcThreadSpinProperty ? "Thread Spin" : "Thread Blocking",  // min
                     payloadSize,useDirectByteBuffer ? "Direct Buffer" : "Non-Direct Buffer",ipcThreadSpinProperty ? "Thread Spin" : "Thread Blocking",  // 50th %
                     payloadSize,useDirectByteBuffer ? "Direct Buffer" : "Non-Direct Buffer",ipcThreadSpinProperty ? "Thread Spin" : "Thread Blocking",  // 95th
                     payloadSize,useDirectByteBuffer ? "Direct Buffer" : "Non-Direct Buffer",ipcThreadSpinProperty ? "Thread Spin" : "Thread Blocking",  // 99th
                     payloadSize,useDirectByteBuffer ? "Direct Buffer" : "Non-Direct Buffer",ipcThreadSpinProperty ? "Thread Spin" : "Thread Blocking",  // 99.5th
-                    payloadSize,useDirectByteBuffer ? "Direct Buffer" : "Non-Direct Buffer",ipcThreadSpinProperty ? "Thread Spin" : "Thread Blocking"); // 99.9th
-            System.out.printf("### %d,%d,%b,%b,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n",
+                    payloadSize,useDirectByteBuffer ? "Direct Buffer" : "Non-Direct Buffer",ipcThreadSpinProperty ? "Thread Spin" : "Thread Blocking",  // 99.9th
+                    coordinatedOmissionCorrection ? ",CO Min,CO 50th%,CO 95th%,CO 99th%,CO 99.5th%,CO 99.9th%,Lost,Duplicates,Reordered,Allocated Bytes,GCs,GC ms,Subscriptions,Wildcards,Topics,Depth" : ",Lost,Duplicates,Reordered,Allocated Bytes,GCs,GC ms,Subscriptions,Wildcards,Topics,Depth");
+            System.out.printf("### %d,%d,%b,%b,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
                     rate,
                     payloadSize,
                     useDirectByteBuffer,
                     ipcThreadSpinProperty,
                     min/1000f,
-                    receivedTs[(int)((numReceived/2)*0.5)]/1000f,
-                    receivedTs[(int)((numReceived/2)*0.95)]/1000f,
-                    receivedTs[(int)((numReceived/2)*0.99)]/1000f,
-                    receivedTs[(int)((numReceived/2)*0.995)]/1000f,
-                    receivedTs[(int)((numReceived/2)*0.999)]/1000f);
+                    histogram.getValueAtPercentile(50.0)/1000f,
+                    histogram.getValueAtPercentile(95.0)/1000f,
+                    histogram.getValueAtPercentile(99.0)/1000f,
+                    histogram.getValueAtPercentile(99.5)/1000f,
+                    histogram.getValueAtPercentile(99.9)/1000f);
+            if (coordinatedOmissionCorrection) {
+                System.out.printf(",%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                        correctedHistogram.getMinValue()/1000f,
+                        correctedHistogram.getValueAtPercentile(50.0)/1000f,
+                        correctedHistogram.getValueAtPercentile(95.0)/1000f,
+                        correctedHistogram.getValueAtPercentile(99.0)/1000f,
+                        correctedHistogram.getValueAtPercentile(99.5)/1000f,
+                        correctedHistogram.getValueAtPercentile(99.9)/1000f);
+            }
+            System.out.printf(",%d,%d,%d,%d,%d,%d,%d,%d,%d,%d%n",lost,duplicates,reordered,allocatedBytes,gcCount,gcMillis,
+                    largest.subscriptions,largest.wildcards,numTopics,topicDepth);
             System.out.println();
         } else {
-            int cumulative = 0;
-            for (int i=0;i<bucketNum;i++) {
-                cumulative += buckets[i];
-                System.out.printf("%2d) [%5.2fus-%5.2fus] %7d  |  %5.2f%%%n",i,(bucketSize*i)/1000f,((bucketSize*(i+1))-1)/1000f,buckets[i],(cumulative*100.0)/(numReceived/2));
-            }
-            System.out.printf("%2d)        > %5.2fus  %7d  |  %4.3f%%%n",bucketNum,((bucketSize*(bucketNum))-1)/1000f,over,(over*100.0)/(numReceived/2));
+            histogram.printBuckets(System.out, bucketSize, bucketNum);
             System.out.println("=====================");
-            System.out.printf("      Min: %7.2fus%n",min/1000f);
-            //System.out.printf("      Avg: %7.2fus%n",(total/(numReceived/2))/1000f);
-            System.out.printf("    50th%%: %7.2fus%n",receivedTs[(int)((numReceived/2)*0.5)]/1000f);
-            System.out.printf("    95th%%: %7.2fus%n",receivedTs[(int)((numReceived/2)*0.95)]/1000f);
-            System.out.printf("    99th%%: %7.2fus%n",receivedTs[(int)((numReceived/2)*0.99)]/1000f);
-            System.out.printf("  99.5th%%: %7.2fus%n",receivedTs[(int)((numReceived/2)*0.995)]/1000f);
-            System.out.printf("  99.9th%%: %7.2fus%n",receivedTs[(int)((numReceived/2)*0.999)]/1000f);
-            System.out.printf("      Max: %7.2fus%n",max/1000f);
-            System.out.println();
+            histogram.printPercentiles(System.out);
+            if (coordinatedOmissionCorrection) {
+                System.out.println("Corrected for coordinated omission (from intended send time):");
+                System.out.println("=====================");
+                correctedHistogram.printPercentiles(System.out);
+            }
+        }
+        printBatchPositions();
+        if (hiccupMeter != null) {
+            printTailOverlaps(hiccupMeter, tailSamples);
         }
 	}
 
+	/**
+	 * Subscribes to everything one stream publishes on: its topic, its -topics/-depth set, or one wildcard over that set
+	 */
+	private void subscribeStream(CustomEventsAdapter subscriber, String streamTopic) {
+	    if (wildcardStreams) {
+	        subscriber.transport.subscribe(streamTopic + "/>");
+	        subscriber.subscriptions++;
+	        subscriber.wildcards++;
+	        return;
+	    }
+	    for (String topic : IPCPerfPub.topicsFor(streamTopic, numTopics, topicDepth)) {
+	        subscriber.transport.subscribe(topic);
+	        subscriber.subscriptions++;
+	    }
+	}
+
+	/**
+	 * With -ready, waits until every subscriber has what the publisher says it sent on their streams,
+	 * or nothing has arrived for a second since it finished, or the timeout.
+	 */
+	private void awaitPublisherDone(long deadline) throws InterruptedException {
+	    long lastReceived = -1;
+	    long quietSince = 0;
+	    while (System.nanoTime() < deadline && latch.getCount() > 0) {  // the latch still counts errors
+	        latch.await(10,TimeUnit.MILLISECONDS);  // also keeps numReceived from being hoisted out of the loop
+	        long[] sent = handshake.getSent();
+	        if (sent == null) {
+	            continue;
+	        }
+	        long received = 0;
+	        long expected = 0;
+	        for (CustomEventsAdapter subscriber : subscribers) {
+	            received += subscriber.numReceived;
+	            for (int i=0;i<numStreams && i<sent.length;i++) {
+	                if (subscriber.streamHistograms[i] != null) {
+	                    expected += sent[i];
+	                }
+	            }
+	        }
+	        if (received >= expected) {
+	            return;
+	        }
+	        long now = System.nanoTime();
+	        if (received != lastReceived) {
+	            lastReceived = received;
+	            quietSince = now;
+	        } else if (now - quietSince > HANDSHAKE_QUIET_NS) {
+	            return;
+	        }
+	    }
+	}
+
+	/**
+	 * Latency by position within the publisher's batches (-batch), and how fast a batch arrives
+	 */
+	private void printBatchPositions() {
+	    LatencyHistogram[] merged = null;
+	    long bursts = 0;
+	    long burstMessages = 0;
+	    long burstNanos = 0;
+	    double peakBurstRate = 0;
+	    for (CustomEventsAdapter subscriber : subscribers) {
+	        if (!subscriber.batched) {
+	            continue;
+	        }
+	        subscriber.endBurst();
+	        if (merged == null) {
+	            merged = new LatencyHistogram[BATCH_BUCKETS];
+	            for (int i=0;i<BATCH_BUCKETS;i++) {
+	                merged[i] = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+	            }
+	        }
+	        for (int i=0;i<BATCH_BUCKETS;i++) {
+	            merged[i].add(subscriber.batchHistograms[i]);
+	        }
+	        bursts += subscriber.bursts;
+	        burstMessages += subscriber.burstMessages;
+	        burstNanos += subscriber.burstNanos;
+	        peakBurstRate = Math.max(peakBurstRate, subscriber.peakBurstRate);
+	    }
+	    if (merged == null) {
+	        return;
+	    }
+	    System.out.printf("Latency by position in the batch:%n %12s %10s %10s %10s %10s %10s%n","Position","Received","50th us","99th us","99.9th us","Max us");
+	    for (int i=0;i<BATCH_BUCKETS;i++) {
+	        LatencyHistogram positionHistogram = merged[i];
+	        if (positionHistogram.getTotalCount() == 0) {
+	            continue;
+	        }
+	        int from = i == 0 ? 0 : 1 << (i-1);
+	        String position = i <= 1 ? Integer.toString(from) : i == BATCH_BUCKETS-1 ? from+"+" : from+"-"+((from<<1)-1);
+	        System.out.printf(" %12s %10d %10.2f %10.2f %10.2f %10.2f%n",position,positionHistogram.getTotalCount(),
+	                positionHistogram.getValueAtPercentile(50.0)/1000f,
+	                positionHistogram.getValueAtPercentile(99.0)/1000f,
+	                positionHistogram.getValueAtPercentile(99.9)/1000f,
+	                positionHistogram.getMaxValue()/1000f);
+	    }
+	    if (bursts > 0) {
+	        System.out.printf("Within a batch, first to last received: peak %.0f msg/s, average %.0f msg/s over %d batches%n%n",
+	                peakBurstRate,burstMessages*1000000000.0/burstNanos,bursts);
+	    }
+	}
+
+	/**
+	 * Which of the worst latencies happened while the platform itself was stalled
+	 */
+	private static void printTailOverlaps(HiccupMeter hiccupMeter, TailSamples tailSamples) {
+	    hiccupMeter.printReport(System.out);
+	    tailSamples.sort();
+	    int overlapping = 0;
+	    for (int i=0;i<tailSamples.size();i++) {
+	        if (hiccupMeter.describeOverlap(tailSamples.getSentTs(i), tailSamples.getReceivedTs(i)) != null) {
+	            overlapping++;
+	        }
+	    }
+	    System.out.printf("%d of the %d largest latencies overlap a hiccup or GC in this process, the top %d:%n",overlapping,tailSamples.size(),Math.min(TAIL_SAMPLES_SHOWN,tailSamples.size()));
+	    System.out.printf(" %12s %10s  %s%n","Latency us","At s","Overlaps");
+	    for (int i=0;i<tailSamples.size() && i<TAIL_SAMPLES_SHOWN;i++) {
+	        String overlap = hiccupMeter.describeOverlap(tailSamples.getSentTs(i), tailSamples.getReceivedTs(i));
+	        System.out.printf(" %12.2f %10.3f  %s%n",tailSamples.getLatency(i)/1000f,(tailSamples.getReceivedTs(i)-hiccupMeter.getStartTime())/1000000000.0,overlap == null ? "-" : overlap);
+	    }
+	    System.out.println();
+	}
+
 	/**
 	 * Invoked when the sample finishes
 	 */
@@ -225,33 +598,305 @@ public class IPCPerfSub extends AbstractSample {
 		/*************************************************************************
 		 * Cleanup
 		 *************************************************************************/
-		finish_DestroyHandle(txMessageHandle, "messageHandle");
-		finish_Disconnect(sessionHandle);
-		finish_DestroyHandle(sessionHandle, "sessionHandle");
-		finish_DestroyHandle(contextHandle, "contextHandle");
-		finish_Solclient();
+		for (CustomEventsAdapter subscriber : subscribers) {
+		    if (subscriber.transport != null) {
+		        subscriber.transport.close();
+		    }
+		}
 	}
 
-	static class CustomEventsAdapter implements MessageCallback, SessionEventCallback {
+	/**
+	 * One subscriber: its own transport (context and session), and everything it measured.
+	 * Only touched by that transport's receive thread until the latch fires.
+	 */
+	static class CustomEventsAdapter implements Transport.Listener {
+
+	    private static final int SEQ_WINDOW = 4096;  // a power of 2
+
+	    final int index;
+	    Transport transport;
+	    int subscriptions = 0;  // in its session's table, stream ones and -xsubs/-wsubs
+	    int wildcards = 0;
+	    int cpu = -1;  // pin the receive thread here, not pinned when -1
+	    SampleCapture capture;  // null unless -capture
+	    final LatencyHistogram[] batchHistograms = new LatencyHistogram[BATCH_BUCKETS];  // by batch position, see batchBucket(), up front as a -w 0 run measures from the first message
+	    boolean batched = false;  // a batch has shown up, i.e. the publisher has -batch
+	    long batchStartReceivedTs = 0;
+	    long batchLastReceivedTs = 0;
+	    int batchLastPosition = 0;
+	    long bursts = 0;  // batches of more than one message, for the throughput within a batch
+	    long burstMessages = 0;
+	    long burstNanos = 0;
+	    double peakBurstRate = 0;
+	    long numReceived = 0;  // total
+	    private final byte[] localCopy = new byte[10000];  // could be big array
+	    int payloadSize = 0;
+	    final LatencyHistogram histogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));  // ~270KB, 3 significant digits
+	    final LatencyHistogram correctedHistogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));  // from the intended send time
+	    boolean measuring = false;  // warm-up is over
+	    long warmupReceived = 0;  // how many of numReceived were warm-up
+	    long firstReceivedTs = 0;
+	    long firstSentTs = 0;  // of the first message measured
+	    long lastSentTs = 0;
+	    final LatencyHistogram[] streamHistograms;  // only for the streams this one subscribes to
+	    final long[] streamCounts;
+	    final long[] streamFirstReceivedTs;
+	    final long[] streamLastReceivedTs;
+	    final long[] streamNextSeq;  // one past the highest sequence seen
+	    final long[][] streamSeen;  // bitmap of the last SEQ_WINDOW sequences, to tell a late arrival from a duplicate
+	    final long[] streamLost;  // gaps not (yet) filled by a late arrival
+	    final long[] streamDuplicates;
+	    final long[] streamReordered;
+	    final LatencyHistogram stepHistogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));  // current sweep step
+	    int sweepRate = 0;  // target rate of the current sweep step, 0 = not sweeping
+	    long stepCount = 0;
+	    long stepFirstReceivedTs = 0;
+	    long stepLastReceivedTs = 0;
+	    long baselineP99 = 0;  // best p99 of the sweep steps so far
+	    long lastGoodRate = 0;
+	    long saturatedRate = 0;
+	    final TailSamples tailSamples = hiccupMs > 0 ? new TailSamples(TAIL_SAMPLES) : null;  // the worst ones after the warm-up
+	    final AllocationMeter allocationMeter = new AllocationMeter();  // the receive thread, from just after the warm-up to the first event after it
+	    long allocationFromTs = Long.MAX_VALUE;
+	    final IntervalRecorder intervalRecorder = intervalMs > 0 ? new IntervalRecorder(TimeUnit.HOURS.toNanos(1)) : null;  // everything, warm-up included
+
+	    CustomEventsAdapter(int index, int numStreams) {
+	        this.index = index;
+	        Arrays.fill(localCopy,(byte)32);  // fill with stuff... payloadSize amount will get overwritten
+	        streamHistograms = new LatencyHistogram[numStreams];
+	        streamCounts = new long[numStreams];
+	        streamFirstReceivedTs = new long[numStreams];
+	        streamLastReceivedTs = new long[numStreams];
+	        streamNextSeq = new long[numStreams];
+	        streamSeen = new long[numStreams][];
+	        streamLost = new long[numStreams];
+	        streamDuplicates = new long[numStreams];
+	        streamReordered = new long[numStreams];
+	        for (int i=0;i<BATCH_BUCKETS;i++) {
+	            batchHistograms[i] = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+	        }
+	    }
+
+	    void addStream(int stream) {
+	        streamHistograms[stream] = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+	        streamSeen[stream] = new long[SEQ_WINDOW/64];
+	    }
+
+	    /**
+	     * Sorts a sequence number into in order, gap, late or duplicate.  Anything older than the
+	     * window can't be checked against the bitmap, so it's taken as late (e.g. shm with -topics,
+	     * which drains one ring at a time) and comes off the lost count, unless nothing is lost.
+	     */
+	    void checkSequence(int stream, long seq) {
+	        long[] seen = streamSeen[stream];
+	        long next = streamNextSeq[stream];
+	        if (seq >= next) {
+	            long gap = seq - next;
+	            if (gap >= SEQ_WINDOW) {
+	                Arrays.fill(seen, 0);
+	            } else {
+	                for (long s = next; s < seq; s++) {  // these slots now stand for the missing ones
+	                    seen[(int)(s & (SEQ_WINDOW-1)) >>> 6] &= ~(1L << s);
+	                }
+	            }
+	            streamLost[stream] += gap;
+	            seen[(int)(seq & (SEQ_WINDOW-1)) >>> 6] |= 1L << seq;
+	            streamNextSeq[stream] = seq + 1;
+	        } else if (seq < next - SEQ_WINDOW) {
+	            if (streamLost[stream] > 0) {
+	                streamReordered[stream]++;
+	                streamLost[stream]--;
+	            } else {
+	                streamDuplicates[stream]++;  // nothing missing, so it must have been here already
+	            }
+	        } else {
+	            int word = (int)(seq & (SEQ_WINDOW-1)) >>> 6;
+	            if ((seen[word] & (1L << seq)) != 0) {
+	                streamDuplicates[stream]++;
+	            } else {
+	                seen[word] |= 1L << seq;
+	                streamReordered[stream]++;
+	                streamLost[stream]--;
+	            }
+	        }
+	    }
+
+	    /**
+	     * Whether the warm-up is over, by -w count, duration or auto.  Once it says yes, the answer stays yes.
+	     */
+	    boolean isWarm(long receivedTime) {
+	        if (warmupDetector != null) {
+	            return warmupDetector.isWarm();
+	        }
+	        if (warmupNanos > 0) {
+	            return receivedTime - firstReceivedTs >= warmupNanos;
+	        }
+	        return numReceived >= warmupMessages;
+	    }
+
+	    /**
+	     * @return 0 for position 0, 1 for 1, 2 for 2-3, 3 for 4-7 and so on
+	     */
+	    static int batchBucket(int position) {
+	        return Math.min(BATCH_BUCKETS-1, 32 - Integer.numberOfLeadingZeros(position));
+	    }
+
+	    /**
+	     * Only makes sense when this subscriber gets one stream, otherwise their batches interleave.
+	     */
+	    void recordBatchPosition(int position, long receivedTime, long latency) {
+	        batchHistograms[batchBucket(position)].recordValue(latency);
+	        if (position == 0) {
+	            endBurst();
+	            batchStartReceivedTs = receivedTime;
+	        } else {
+	            batchLastReceivedTs = receivedTime;
+	            batchLastPosition = position;
+	        }
+	    }
+
+	    void endBurst() {
+	        long span = batchLastReceivedTs - batchStartReceivedTs;
+	        if (batchStartReceivedTs != 0 && batchLastPosition > 0 && span > 0) {  // not a batch that started in the warm-up
+	            peakBurstRate = Math.max(peakBurstRate, batchLastPosition*1000000000.0/span);
+	            burstMessages += batchLastPosition;
+	            burstNanos += span;
+	            bursts++;
+	        }
+	        batchLastPosition = 0;
+	    }
+
+    	/**
+    	 * Prints the ### row for the sweep step that just ended and checks it for saturation.
+    	 * Called on the receive thread when the next step starts (while that one is settling), and once more at the end.
+    	 */
+    	void endSweepStep() {
+            if (stepCount == 0) {
+                return;
+            }
+            double achievedRate = stepCount > 1 ? (stepCount-1)*1000000000.0/(stepLastReceivedTs-stepFirstReceivedTs) : 0;
+            long p99 = stepHistogram.getValueAtPercentile(99.0);
+            if (baselineP99 == 0) {
+                System.out.println("### Sweep,Target Rate,Achieved Rate,Size,Min,50th%,95th%,99th%,99.9th%,Max,Saturated");
+                baselineP99 = p99;
+            }
+            boolean saturated = p99 > baselineP99*kneeFactor || achievedRate < sweepRate*kneeRateTolerance;
+            if (p99 < baselineP99) {
+                baselineP99 = p99;
+            }
+            if (saturated) {
+                if (saturatedRate == 0) {
+                    saturatedRate = sweepRate;
+                }
+            } else if (saturatedRate == 0) {
+                lastGoodRate = sweepRate;
+            }
+            System.out.printf("### Sweep,%d,%.0f,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%b%n",
+                    sweepRate,
+                    achievedRate,
+                    payloadSize,
+                    stepHistogram.getMinValue()/1000f,
+                    stepHistogram.getValueAtPercentile(50.0)/1000f,
+                    stepHistogram.getValueAtPercentile(95.0)/1000f,
+                    p99/1000f,
+                    stepHistogram.getValueAtPercentile(99.9)/1000f,
+                    stepHistogram.getMaxValue()/1000f,
+                    saturated);
+            stepHistogram.reset();
+            stepCount = 0;
+    	}
 
 		@Override
-		public void onEvent(SessionHandle sessionHandle) {
-            System.out.printf("*** Received an Event! %s - %s%n",SessionEventCode.toString(sessionHandle.getSessionEvent().getSessionEventCode()),sessionHandle.getSessionEvent().getInfo());
+		public void onEvent(String event) {
+		    allocationMeter.stop();  // the publisher is going away, and printing allocates
+            System.out.printf("*** Received an Event! %s%n",event);
             latch.countDown();
 		}
 
 		@Override
-		public void onMessage(Handle handle) {
+		public void onMessage(long receivedTime, ByteBuffer byteBuffer) {
 		    try {
-    		    receivedTs[numReceived] = System.nanoTime();
-                MessageSupport messageSupport = (MessageSupport)handle;
-                messageSupport.getRxMessage().getBinaryAttachment(byteBuffer);
-                byteBuffer.flip();
+		        if (cpu >= 0) {  // the API owns the receive thread, so this is the first chance to pin it
+		            Affinity.pin(cpu);
+		            cpu = -1;
+		        }
                 payloadSize = byteBuffer.limit();
-                sentTs[numReceived] = byteBuffer.getLong();
-                byteBuffer.get(localCopy,0,byteBuffer.limit()-byteBuffer.position());  // this is to be more accurate... actually read the payload into the JVM
+                long sentTs = byteBuffer.getLong(Payload.SEND_TIME);
+                long intendedTs = coordinatedOmissionCorrection ? byteBuffer.getLong(Payload.INTENDED_TIME) : sentTs;  // the publisher's pacing schedule
+                int stream = 0;
+                long sequence = -1;
+                int batchPosition = 0;
+                boolean knownStream = streamHistograms[0] != null;  // too small for the header, so it must be the only stream
+                if (payloadSize >= Payload.HEADER_SIZE) {
+                    stream = byteBuffer.getInt(Payload.STREAM);
+                    knownStream = stream >= 0 && stream < streamHistograms.length && streamHistograms[stream] != null;
+                    sequence = byteBuffer.getLong(Payload.SEQUENCE);
+                    batchPosition = byteBuffer.getInt(Payload.BATCH_POSITION);
+                    if (knownStream) {
+                        checkSequence(stream, sequence);
+                    }
+                    int rate = byteBuffer.getInt(Payload.SWEEP_RATE);
+                    if (rate != sweepRate) {  // next sweep step
+                        endSweepStep();
+                        sweepRate = rate;
+                    }
+                    if (rate != 0 && (byteBuffer.getInt(Payload.FLAGS) & Payload.FLAG_SETTLING) == 0) {
+                        if (stepCount == 0) {
+                            stepFirstReceivedTs = receivedTime;
+                        }
+                        stepLastReceivedTs = receivedTime;
+                        stepCount++;
+                        stepHistogram.recordValue(receivedTime-sentTs);
+                    }
+                }
+                if (batchPosition > 0) {
+                    batched = true;
+                }
+                byteBuffer.get(localCopy,0,byteBuffer.limit());  // this is to be more accurate... actually read the payload into the JVM
+                if (numReceived == 0) {
+                    firstReceivedTs = receivedTime;
+                }
+                lastSentTs = sentTs;
+                if (!measuring && isWarm(receivedTime)) {
+                    measuring = true;
+                    warmupReceived = numReceived;
+                    firstSentTs = sentTs;
+                    if (capture != null) {
+                        capture.setWarmup(numReceived);
+                    }
+                    allocationFromTs = receivedTime + AllocationMeter.SETTLE_NANOS;
+                }
+                if (receivedTime >= allocationFromTs) {
+                    allocationMeter.start();
+                    allocationFromTs = Long.MAX_VALUE;
+                }
+                if (capture != null) {
+                    capture.record(sentTs, intendedTs, receivedTime, sequence, stream);
+                }
+                if (intervalRecorder != null) {
+                    intervalRecorder.recordValue(receivedTime-sentTs);
+                }
+                if (measuring) {
+                    histogram.recordValue(receivedTime-sentTs);  // e.g. 8234ns = 8.2us
+                    if (tailSamples != null) {
+                        tailSamples.record(sentTs, receivedTime);
+                    }
+                    if (batched) {
+                        recordBatchPosition(batchPosition, receivedTime, receivedTime-sentTs);
+                    }
+                    if (coordinatedOmissionCorrection) {
+                        correctedHistogram.recordValue(receivedTime-intendedTs);
+                    }
+                    if (knownStream) {
+                        if (streamCounts[stream] == 0) {
+                            streamFirstReceivedTs[stream] = receivedTime;
+                        }
+                        streamLastReceivedTs[stream] = receivedTime;
+                        streamCounts[stream]++;
+                        streamHistograms[stream].recordValue(receivedTime-sentTs);
+                    }
+                }
                 numReceived++;
-                byteBuffer.clear();
 		    } catch (Exception e) {
 		        e.printStackTrace();
 		        latch.countDown();
@@ -266,6 +911,9 @@ public class IPCPerfSub extends AbstractSample {
 	public static void main(String[] args) {
 		IPCPerfSub sample = new IPCPerfSub();
 		sample.run(args);
+		if (sample.allocationFailed) {
+		    System.exit(1);
+		}
 	}
 
 }
@@ -0,0 +1,79 @@
+package com.solace.aa.javarto;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * IntervalRecorder.java
+ *
+ * A pair of {@link LatencyHistogram}s: the receive thread records into the active one while
+ * a reporter thread swaps them and reads the other.  The writer never blocks or allocates,
+ * it only bumps two counters; the reader waits for any write in flight to finish before
+ * reading (the writer/reader phaser scheme from HdrHistogram's Recorder).
+ *
+ */
+public class IntervalRecorder {
+
+    private final AtomicLong startEpoch = new AtomicLong(0);
+    private final AtomicLong evenEndEpoch = new AtomicLong(0);
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong lastValue = new AtomicLong(0);  // e.g. the current send-to-receive lag
+    private volatile LatencyHistogram active;
+    private LatencyHistogram inactive;
+
+    public IntervalRecorder(long highestTrackableValue) {
+        active = new LatencyHistogram(highestTrackableValue);
+        inactive = new LatencyHistogram(highestTrackableValue);
+    }
+
+    /**
+     * Single writer only.
+     */
+    public void recordValue(long value) {
+        lastValue.lazySet(value);
+        long criticalValueAtEnter = startEpoch.getAndIncrement();
+        try {
+            active.recordValue(value);
+        } finally {
+            if (criticalValueAtEnter < 0) {
+                oddEndEpoch.getAndIncrement();
+            } else {
+                evenEndEpoch.getAndIncrement();
+            }
+        }
+    }
+
+    /**
+     * @return the most recent value recorded, from any thread
+     */
+    public long getLastValue() {
+        return lastValue.get();
+    }
+
+    /**
+     * Swaps the histograms and returns everything recorded since the last call.
+     * The returned histogram is only valid until the next call.
+     */
+    public synchronized LatencyHistogram getIntervalHistogram() {
+        inactive.reset();
+        LatencyHistogram filled = active;
+        active = inactive;
+        inactive = filled;
+        flipPhase();
+        return filled;
+    }
+
+    /**
+     * Waits until every writer that could have seen the old active histogram has left it.
+     */
+    private void flipPhase() {
+        boolean nextPhaseIsEven = startEpoch.get() < 0;
+        long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+        (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(initialStartValue);
+        long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+        AtomicLong previousEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+        while (previousEndEpoch.get() != startValueAtFlip) {
+            Thread.yield();
+        }
+    }
+}
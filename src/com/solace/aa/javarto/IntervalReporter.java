@@ -0,0 +1,140 @@
+package com.solace.aa.javarto;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * IntervalReporter.java
+ *
+ * Background thread that prints the latency of each interval while the test runs, so drift,
+ * hiccups and saturation show up when they happen rather than only in the final summary.
+ * Every tick it swaps the {@link IntervalRecorder}s of all the subscribers and prints them
+ * merged together, with the lag of the latest message: if that keeps growing, the subscriber
+ * isn't keeping up and the backlog (roughly lag times receive rate) is queueing somewhere.
+ *
+ */
+public class IntervalReporter implements Runnable {
+
+    private final IntervalRecorder[] recorders;
+    private final long intervalNanos;
+    private final PrintStream out;
+    private final LatencyHistogram merged;
+    private final WarmupDetector warmupDetector;
+    private volatile boolean running = true;
+    private Thread thread;
+    private long startTime;  // the rest is only touched by the reporter thread
+    private long lastSwap;
+    private long totalCount = 0;
+    private boolean headerPrinted = false;
+    private long intervals = 0;  // full intervals with something in them, for the summary
+    private double minRate = Double.MAX_VALUE;
+    private double maxRate = 0;
+    private double sumRate = 0;
+    private long firstLag = -1;
+    private long firstLagTime = 0;
+    private long lastLag = 0;
+    private long lastLagTime = 0;
+
+    /**
+     * @param warmupDetector fed with every interval, or null
+     */
+    public IntervalReporter(IntervalRecorder[] recorders, long intervalMs, long highestTrackableValue, PrintStream out, WarmupDetector warmupDetector) {
+        this.warmupDetector = warmupDetector;
+        this.recorders = recorders;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.out = out;
+        merged = new LatencyHistogram(highestTrackableValue);
+    }
+
+    public void start() {
+        thread = new Thread(this, "interval-reporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        startTime = System.nanoTime();
+        lastSwap = startTime;
+        long nextTick = startTime + intervalNanos;
+        while (running) {
+            long now = System.nanoTime();
+            if (now < nextTick) {
+                LockSupport.parkNanos(nextTick - now);
+                continue;
+            }
+            report(now);
+            nextTick += intervalNanos;
+            if (nextTick < now) {  // fell behind, e.g. stopped in a debugger, don't report a burst of empty ticks
+                nextTick = now + intervalNanos;
+            }
+        }
+        report(System.nanoTime());  // whatever came in since the last tick
+        if (intervals > 0) {
+            out.printf("%nReceive rate over %d intervals: min %.0f, avg %.0f, max %.0f msg/s.  Lag went from %.2fus to %.2fus (%+.2fus/s)%n",
+                    intervals,minRate,sumRate/intervals,maxRate,firstLag/1000f,lastLag/1000f,
+                    lastLagTime > firstLagTime ? (lastLag-firstLag)*1000000.0/(lastLagTime-firstLagTime) : 0);
+        }
+    }
+
+    private void report(long now) {
+        merged.reset();
+        for (IntervalRecorder recorder : recorders) {
+            merged.add(recorder.getIntervalHistogram());
+        }
+        long count = merged.getTotalCount();
+        totalCount += count;
+        if (warmupDetector != null && warmupDetector.onInterval(merged)) {
+            out.printf(" Warm after %.1fs: percentiles settled over %d intervals with the JIT quiet, measuring from here%n",
+                    (now-startTime)/1000000000.0,WarmupDetector.STABLE_INTERVALS);
+        }
+        if (count > 0) {  // quiet until the publisher starts, and after it stops
+            long lag = 0;
+            for (IntervalRecorder recorder : recorders) {
+                lag = Math.max(lag, recorder.getLastValue());
+            }
+            double rate = count*1000000000.0/(now-lastSwap);
+            if (!headerPrinted) {
+                out.printf("%n %8s %10s %12s %10s %10s %10s %10s %12s %10s %10s%n","Time s","Msgs","msg/s","50th us","99th us","99.9th us","Max us","Total","Lag us","Backlog");
+                headerPrinted = true;
+            }
+            out.printf(" %8.1f %10d %12.0f %10.2f %10.2f %10.2f %10.2f %12d %10.2f %10.0f%n",
+                    (now-startTime)/1000000000.0,
+                    count,
+                    rate,
+                    merged.getValueAtPercentile(50.0)/1000f,
+                    merged.getValueAtPercentile(99.0)/1000f,
+                    merged.getValueAtPercentile(99.9)/1000f,
+                    merged.getMaxValue()/1000f,
+                    totalCount,
+                    lag/1000f,
+                    lag*rate/1000000000.0);
+            if (running) {  // the last one is only part of an interval
+                intervals++;
+                minRate = Math.min(minRate, rate);
+                maxRate = Math.max(maxRate, rate);
+                sumRate += rate;
+                if (firstLag < 0) {
+                    firstLag = lag;
+                    firstLagTime = now;
+                }
+                lastLag = lag;
+                lastLagTime = now;
+            }
+        }
+        lastSwap = now;
+    }
+}
@@ -0,0 +1,235 @@
+package com.solace.aa.javarto;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ *
+ * LatencyHistogram.java
+ *
+ * A fixed-size, log-bucketed histogram with the same bucket layout as HdrHistogram:
+ * each power-of-2 range is split into 2048 linear sub-buckets, so every recorded value
+ * keeps 3 significant digits.  {@link #recordValue(long)} never allocates, so it can be
+ * called straight from onMessage; tracking up to an hour in nanoseconds takes ~270KB.
+ * <p>
+ * Not thread safe: record on one thread, and read after a happens-before edge (e.g. a latch).
+ *
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 10;  // 2 * 10^3 significant values fit in 2^11 sub-buckets
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+    private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT << 1;
+    private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+    private static final int LEADING_ZERO_COUNT_BASE = 64 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1;
+
+    private final long highestTrackableValue;
+    private final long[] counts;
+    private long totalCount;
+    private long minValue;
+    private long maxValue;
+    private long sum;  // of everything but the lost, saturating at Long.MAX_VALUE
+    private long lostCount;
+
+    /**
+     * @param highestTrackableValue anything larger is counted as this value (max is still exact)
+     */
+    public LatencyHistogram(long highestTrackableValue) {
+        if (highestTrackableValue < SUB_BUCKET_COUNT) {
+            throw new IllegalArgumentException("highestTrackableValue must be at least " + SUB_BUCKET_COUNT);
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        int bucketsNeeded = 1;
+        long smallestUntrackableValue = SUB_BUCKET_COUNT;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+                bucketsNeeded++;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            bucketsNeeded++;
+        }
+        counts = new long[(bucketsNeeded + 1) * SUB_BUCKET_HALF_COUNT];
+        reset();
+    }
+
+    public void recordValue(long value) {
+        recordValues(value, 1);
+    }
+
+    /**
+     * Records the same value count times.
+     */
+    public void recordValues(long value, long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (value < 0) {
+            value = 0;
+        }
+        if (value < minValue) minValue = value;
+        if (value > maxValue) maxValue = value;
+        counts[countsIndex(Math.min(value, highestTrackableValue))] += count;
+        totalCount += count;
+        sum = saturatedAdd(sum, Math.multiplyHigh(value, count) == 0 && value * count >= 0 ? value * count : Long.MAX_VALUE);
+    }
+
+    /**
+     * Counts messages that never arrived as infinitely late: in the top bucket, so they push the
+     * percentiles and max up, but not into the mean, which would be an hour per lost message.
+     */
+    public void recordLost(long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (highestTrackableValue < minValue) minValue = highestTrackableValue;
+        if (highestTrackableValue > maxValue) maxValue = highestTrackableValue;
+        counts[countsIndex(highestTrackableValue)] += count;
+        totalCount += count;
+        lostCount += count;
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long result = a + b;
+        return ((a ^ result) & (b ^ result)) < 0 ? Long.MAX_VALUE : result;  // both non-negative, so only overflow upwards
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        minValue = Long.MAX_VALUE;
+        maxValue = 0;
+        sum = 0;
+        lostCount = 0;
+    }
+
+    /**
+     * Adds all the counts of another histogram with the same highestTrackableValue into this one.
+     */
+    public void add(LatencyHistogram other) {
+        if (other.counts.length != counts.length) {
+            throw new IllegalArgumentException("Histograms have different ranges");
+        }
+        for (int i=0;i<counts.length;i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum = saturatedAdd(sum, other.sum);
+        lostCount += other.lostCount;
+        if (other.totalCount > 0) {
+            if (other.minValue < minValue) minValue = other.minValue;
+            if (other.maxValue > maxValue) maxValue = other.maxValue;
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMinValue() {
+        return totalCount == 0 ? 0 : minValue;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * @return the mean of the recorded values, leaving out the lost
+     */
+    public double getMean() {
+        return totalCount == lostCount ? 0 : (double)sum / (totalCount - lostCount);
+    }
+
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    public long getHighestTrackableValue() {
+        return highestTrackableValue;
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the highest value equivalent to the percentile's bucket, or max for the 100th
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long)(((Math.min(percentile, 100.0) / 100.0) * totalCount) + 0.5));
+        long cumulative = 0;
+        for (int i=0;i<counts.length;i++) {
+            cumulative += counts[i];
+            if (cumulative >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(valueFromIndex(i)), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * @return how many recorded values are below the given value (to 3 significant digits)
+     */
+    public long getCountBelow(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        int limit = countsIndex(Math.min(value, highestTrackableValue));
+        long cumulative = 0;
+        for (int i=0;i<limit;i++) {
+            cumulative += counts[i];
+        }
+        return cumulative;
+    }
+
+    /**
+     * Prints the linear bucket table, bucketSize ns each, with the cumulative percentage.
+     */
+    public void printBuckets(PrintStream out, int bucketSize, int bucketNum) {
+        long cumulative = 0;
+        for (int i=0;i<bucketNum;i++) {
+            long bucket = getCountBelow((long)bucketSize*(i+1)) - cumulative;
+            cumulative += bucket;
+            out.printf("%2d) [%5.2fus-%5.2fus] %7d  |  %5.2f%%%n",i,(bucketSize*i)/1000f,((bucketSize*(i+1))-1)/1000f,bucket,(cumulative*100.0)/totalCount);
+        }
+        long over = totalCount - cumulative;  // anything outside bucket range
+        out.printf("%2d)        > %5.2fus  %7d  |  %4.3f%%%n",bucketNum,((bucketSize*(bucketNum))-1)/1000f,over,(over*100.0)/totalCount);
+    }
+
+    /**
+     * Prints min, avg, the usual percentiles and max in microseconds, one per line.
+     */
+    public void printPercentiles(PrintStream out) {
+        out.printf("      Min: %7.2fus%n",getMinValue()/1000f);
+        out.printf("      Avg: %7.2fus%n",getMean()/1000f);
+        out.printf("    50th%%: %7.2fus%n",getValueAtPercentile(50.0)/1000f);
+        out.printf("    95th%%: %7.2fus%n",getValueAtPercentile(95.0)/1000f);
+        out.printf("    99th%%: %7.2fus%n",getValueAtPercentile(99.0)/1000f);
+        out.printf("  99.5th%%: %7.2fus%n",getValueAtPercentile(99.5)/1000f);
+        out.printf("  99.9th%%: %7.2fus%n",getValueAtPercentile(99.9)/1000f);
+        out.printf("      Max: %7.2fus%n",getMaxValue()/1000f);
+        out.println();
+    }
+
+    private static int countsIndex(long value) {
+        int bucketIndex = LEADING_ZERO_COUNT_BASE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+        int subBucketIndex = (int)(value >>> bucketIndex);
+        return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+    }
+
+    private static long valueFromIndex(int index) {
+        int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucketIndex < 0) {
+            subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+            bucketIndex = 0;
+        }
+        return ((long)subBucketIndex) << bucketIndex;
+    }
+
+    private static long highestEquivalentValue(long value) {
+        int bucketIndex = LEADING_ZERO_COUNT_BASE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+        return value + (1L << bucketIndex) - 1;
+    }
+}
@@ -0,0 +1,36 @@
+package com.solace.aa.javarto;
+
+/**
+ *
+ * Payload.java
+ *
+ * Where the publisher puts things in the message body.  The rest of the payload is filler.
+ * <pre>
+ *  0  long  send time, System.nanoTime() when the publisher actually sent it
+ *  8  long  intended send time from the pacing schedule (needs 16 bytes)
+ * 16  int   target rate of the current sweep step, 0 when not sweeping
+ * 20  int   flags
+ * 24  int   stream, i.e. which publisher thread sent it
+ * 28  long  sequence number within the stream, from 0
+ * 36  int   position within the batch sent on one pacing tick, 0 when not batching
+ * </pre>
+ * Everything from offset 16 on is only written when the whole header fits.
+ *
+ */
+final class Payload {
+
+    static final int SEND_TIME = 0;
+    static final int INTENDED_TIME = 8;
+    static final int SWEEP_RATE = 16;
+    static final int FLAGS = 20;
+    static final int STREAM = 24;
+    static final int SEQUENCE = 28;
+    static final int BATCH_POSITION = 36;
+    static final int HEADER_SIZE = 40;
+
+    /** sweep step is still settling, don't measure */
+    static final int FLAG_SETTLING = 1;
+
+    private Payload() {
+    }
+}
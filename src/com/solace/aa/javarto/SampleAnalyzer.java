@@ -0,0 +1,230 @@
+package com.solace.aa.javarto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * SampleAnalyzer.java
+ *
+ * Reads the raw samples IPCPerfSub captured with -capture and prints the percentiles and bucket
+ * table, merging several files (subscribers, or repeated runs) together.  Given a candidate as
+ * well, it compares the two percentile by percentile and gives a PASS/FAIL verdict, with exit
+ * status 1 on FAIL, so it can gate e.g. a Java RTO upgrade.  No Solace library needed.
+ *
+ * <pre>
+ * java com.solace.aa.javarto.SampleAnalyzer [options] baseline.bin [...] [-vs candidate.bin [...]]
+ * </pre>
+ *
+ */
+public class SampleAnalyzer {
+
+    private static final double[] VERDICT_PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private long warmupOverride = -1;  // -1 = use each file's own
+    private int bucketSize = 1000;  // nanoseconds
+    private int bucketNum = 10;
+    private boolean coordinatedOmissionCorrection = false;
+    private double tolerancePercent = 10;
+    private long slackNanos = 1000;
+    private boolean dump = false;
+    private boolean csv = false;
+
+    /**
+     * One side of the comparison: everything measured in a set of capture files.
+     */
+    class Samples {
+
+        final String name;
+        final LatencyHistogram histogram = new LatencyHistogram(TimeUnit.HOURS.toNanos(1));
+        int files = 0;
+        long lost = 0;
+        long warmup = 0;
+        long dropped = 0;
+
+        Samples(String name) {
+            this.name = name;
+        }
+
+        void load(File file) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.capacity() < SampleCapture.HEADER_SIZE || buffer.getLong(0) != SampleCapture.MAGIC) {
+                throw new IllegalArgumentException(file + " is not a sample capture");
+            }
+            int recordSize = buffer.getInt(SampleCapture.RECORD_SIZE_OFFSET);
+            long count = buffer.getLong(SampleCapture.COUNT_OFFSET);
+            long skip = warmupOverride >= 0 ? warmupOverride : buffer.getLong(SampleCapture.WARMUP_OFFSET);
+            files++;
+            dropped += buffer.getLong(SampleCapture.DROPPED_OFFSET);
+            Map<Integer,long[]> streams = new HashMap<>();  // stream -> {min seq, max seq, count}, per file as each run and subscriber numbers its own
+            for (long i=0;i<count;i++) {
+                int base = SampleCapture.HEADER_SIZE + (int)i * recordSize;
+                long sent = buffer.getLong(base + (coordinatedOmissionCorrection ? SampleCapture.INTENDED : SampleCapture.SENT));
+                long received = buffer.getLong(base + SampleCapture.RECEIVED);
+                long sequence = buffer.getLong(base + SampleCapture.SEQUENCE);
+                int stream = buffer.getInt(base + SampleCapture.STREAM);
+                if (dump) {
+                    System.out.printf("%s,%d,%d,%d,%d,%d%n",file.getName(),buffer.getLong(base + SampleCapture.SENT),buffer.getLong(base + SampleCapture.INTENDED),received,sequence,stream);
+                }
+                if (sequence >= 0) {
+                    long[] stats = streams.computeIfAbsent(stream, k -> new long[] {Long.MAX_VALUE, Long.MIN_VALUE, 0});
+                    stats[0] = Math.min(stats[0], sequence);
+                    stats[1] = Math.max(stats[1], sequence);
+                    stats[2]++;
+                }
+                if (i < skip) {
+                    warmup++;
+                } else {
+                    histogram.recordValue(received - sent);
+                }
+            }
+            // gaps between the first and last sequence seen on each stream, so lost messages at the very end don't show
+            for (long[] stats : streams.values()) {
+                lost += Math.max(0, stats[1] - stats[0] + 1 - stats[2]);
+            }
+        }
+
+        long getLost() {
+            return lost;
+        }
+
+        double getLostFraction() {
+            long total = histogram.getTotalCount() + warmup + getLost();
+            return total == 0 ? 0 : (double)getLost() / total;
+        }
+
+        void print() {
+            System.out.printf("%n%s: %d samples from %d file%s, ignoring the first %d as warm-up, %d lost, %d dropped when a capture file filled up%n%n",
+                    name,histogram.getTotalCount()+warmup,files,files == 1 ? "" : "s",warmup,getLost(),dropped);
+            if (histogram.getTotalCount() == 0) {
+                System.out.println("No measurements... was the capture all warm-up?");
+                return;
+            }
+            histogram.printBuckets(System.out, bucketSize, bucketNum);
+            System.out.println("=====================");
+            histogram.printPercentiles(System.out);
+        }
+    }
+
+    static void printUsage() {
+        System.out.println("Usage: SampleAnalyzer [options] baseline.bin [...] [-vs candidate.bin [...]]");
+        System.out.println("\t -w messages     how many samples of each file to ignore as warm-up [default:as captured]");
+        System.out.println("\t -lg bucketSize  how large each bucket is in nanoseconds [default:1000]");
+        System.out.println("\t -lb numBuckets  how many buckets to use [default:10]");
+        System.out.println("\t -co             measure from the intended send time (coordinated omission corrected)");
+        System.out.println("\t -tol percent    how much worse a candidate percentile can be before the verdict is FAIL [default:10]");
+        System.out.println("\t -slack ns       ...unless it's worse by less than this, to ignore noise at small values [default:1000]");
+        System.out.println("\t -dump           print every sample as file,sent,intended,received,sequence,stream first");
+        System.out.println("\t -csv            print ### rows as well");
+    }
+
+    /**
+     * @return true when there was no candidate or it passed
+     */
+    boolean run(String[] args) throws IOException {
+        List<File> baselineFiles = new ArrayList<>();
+        List<File> candidateFiles = new ArrayList<>();
+        List<File> files = baselineFiles;
+        for (int i=0;i<args.length;i++) {
+            switch (args[i]) {
+            case "-w": warmupOverride = Long.parseLong(args[++i]); break;
+            case "-lg": bucketSize = Integer.parseInt(args[++i]); break;
+            case "-lb": bucketNum = Integer.parseInt(args[++i]); break;
+            case "-co": coordinatedOmissionCorrection = true; break;
+            case "-tol": tolerancePercent = Double.parseDouble(args[++i]); break;
+            case "-slack": slackNanos = Long.parseLong(args[++i]); break;
+            case "-dump": dump = true; break;
+            case "-csv": csv = true; break;
+            case "-vs": files = candidateFiles; break;
+            default:
+                if (args[i].startsWith("-")) {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+                files.add(new File(args[i]));
+            }
+        }
+        if (baselineFiles.isEmpty()) {
+            printUsage();
+            return false;
+        }
+        Samples baseline = new Samples(candidateFiles.isEmpty() ? "Samples" : "Baseline");
+        for (File file : baselineFiles) {
+            baseline.load(file);
+        }
+        baseline.print();
+        if (csv) {
+            printCsv(baseline);
+        }
+        if (candidateFiles.isEmpty()) {
+            return true;
+        }
+        Samples candidate = new Samples("Candidate");
+        for (File file : candidateFiles) {
+            candidate.load(file);
+        }
+        candidate.print();
+        if (csv) {
+            printCsv(candidate);
+        }
+        return compare(baseline, candidate);
+    }
+
+    private boolean compare(Samples baseline, Samples candidate) {
+        if (baseline.histogram.getTotalCount() == 0 || candidate.histogram.getTotalCount() == 0) {
+            System.out.println("Verdict: FAIL, nothing to compare");
+            return false;
+        }
+        boolean pass = true;
+        System.out.printf("Candidate vs baseline, FAIL when more than %.1f%% and %.2fus worse:%n",tolerancePercent,slackNanos/1000f);
+        System.out.printf(" %10s %12s %12s %9s%n","Percentile","Baseline us","Candidate us","Change");
+        for (double percentile : VERDICT_PERCENTILES) {
+            long before = baseline.histogram.getValueAtPercentile(percentile);
+            long after = candidate.histogram.getValueAtPercentile(percentile);
+            boolean worse = after > before * (1 + tolerancePercent / 100) && after - before > slackNanos;
+            pass &= !worse;
+            System.out.printf(" %9sth %12.2f %12.2f %+8.1f%%%s%n",percentile,before/1000f,after/1000f,before == 0 ? 0 : (after-before)*100.0/before,worse ? "  FAIL" : "");
+        }
+        System.out.printf(" %10s %12.2f %12.2f %+8.1f%%  (not part of the verdict)%n","Max",
+                baseline.histogram.getMaxValue()/1000f,candidate.histogram.getMaxValue()/1000f,
+                (candidate.histogram.getMaxValue()-baseline.histogram.getMaxValue())*100.0/Math.max(1,baseline.histogram.getMaxValue()));
+        boolean moreLoss = candidate.getLostFraction() > baseline.getLostFraction();
+        pass &= !moreLoss;
+        System.out.printf(" %10s %11.4f%% %11.4f%%%s%n","Lost",baseline.getLostFraction()*100,candidate.getLostFraction()*100,moreLoss ? "           FAIL" : "");
+        System.out.printf("%nVerdict: %s%n",pass ? "PASS" : "FAIL");
+        if (csv) {
+            System.out.printf("### Verdict,%s%n",pass ? "PASS" : "FAIL");
+        }
+        return pass;
+    }
+
+    private static void printCsv(Samples samples) {
+        System.out.println("### Name,Samples,Lost,Min,50th%,90th%,99th%,99.9th%,Max");
+        System.out.printf("### %s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n%n",
+                samples.name,
+                samples.histogram.getTotalCount(),
+                samples.getLost(),
+                samples.histogram.getMinValue()/1000f,
+                samples.histogram.getValueAtPercentile(50.0)/1000f,
+                samples.histogram.getValueAtPercentile(90.0)/1000f,
+                samples.histogram.getValueAtPercentile(99.0)/1000f,
+                samples.histogram.getValueAtPercentile(99.9)/1000f,
+                samples.histogram.getMaxValue()/1000f);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (!new SampleAnalyzer().run(args)) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.solace.aa.javarto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * SampleCapture.java
+ *
+ * Streams every raw sample into a memory-mapped file, for {@link SampleAnalyzer} to re-bucket,
+ * plot or compare afterwards.  The whole file is mapped and its pages touched up front, so
+ * recording is a few stores into memory: no allocation, no syscalls, no page faults.
+ * <pre>
+ * header, 64 bytes:
+ *  0  long  MAGIC
+ *  8  int   record size
+ * 16  long  how many of the records are warm-up, Long.MAX_VALUE until the subscriber is warm
+ * 24  long  record count, kept up to date so a killed run can still be read
+ * 32  long  samples dropped because the file was full
+ * records, 40 bytes each:
+ *  0  long  send time
+ *  8  long  intended send time (same as send time without -co)
+ * 16  long  receive time
+ * 24  long  sequence, -1 if the payload was too small to carry one
+ * 32  int   stream
+ * </pre>
+ * Single writer only.
+ *
+ */
+public class SampleCapture {
+
+    static final long MAGIC = 0x49504353414d5031L;  // "IPCSAMP1"
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 40;
+    static final int RECORD_SIZE_OFFSET = 8;
+    static final int WARMUP_OFFSET = 16;
+    static final int COUNT_OFFSET = 24;
+    static final int DROPPED_OFFSET = 32;
+    static final int SENT = 0;
+    static final int INTENDED = 8;
+    static final int RECEIVED = 16;
+    static final int SEQUENCE = 24;
+    static final int STREAM = 32;
+    private static final int PAGE_SIZE = 4096;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int count = 0;
+    private long dropped = 0;
+
+    /**
+     * @param capacity how many records to make room for, at most ~53 million (one 2GB mapping)
+     */
+    public SampleCapture(File file, int capacity) throws IOException {
+        this.capacity = Math.min(capacity, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)this.capacity * RECORD_SIZE);
+        }
+        for (int i=0;i<buffer.capacity();i+=PAGE_SIZE) {  // fault everything in now rather than on the hot path
+            buffer.put(i, (byte)0);
+        }
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+        buffer.putLong(WARMUP_OFFSET, Long.MAX_VALUE);
+        buffer.putLong(COUNT_OFFSET, 0);
+        buffer.putLong(DROPPED_OFFSET, 0);
+        System.out.printf(" Capturing up to %d samples to %s%n", this.capacity, file);
+    }
+
+    public void record(long sentTs, long intendedTs, long receivedTs, long sequence, int stream) {
+        if (count == capacity) {
+            dropped++;
+            return;
+        }
+        int base = HEADER_SIZE + count * RECORD_SIZE;
+        buffer.putLong(base + SENT, sentTs);
+        buffer.putLong(base + INTENDED, intendedTs);
+        buffer.putLong(base + RECEIVED, receivedTs);
+        buffer.putLong(base + SEQUENCE, sequence);
+        buffer.putInt(base + STREAM, stream);
+        buffer.putLong(COUNT_OFFSET, ++count);
+    }
+
+    /**
+     * @param warmupMessages how many of the samples so far were warm-up
+     */
+    public void setWarmup(long warmupMessages) {
+        buffer.putLong(WARMUP_OFFSET, warmupMessages);
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Flushes to the file; the mapping itself goes when the buffer is collected.
+     */
+    public void close() {
+        buffer.putLong(DROPPED_OFFSET, dropped);
+        buffer.force();
+    }
+}
@@ -0,0 +1,361 @@
+package com.solace.aa.javarto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * ShmRingTransport.java
+ *
+ * A {@link Transport} made of memory-mapped single-producer/single-consumer ring buffers,
+ * one file per topic under /dev/shm.  No broker, no library, no licence: it is the floor
+ * that the Solace IPC numbers can be quoted against.
+ * <p>
+ * The subscriber creates (and resets) the ring when it subscribes, and a publisher waits
+ * for a ring whose subscriber is alive, so either can be started first.  Only exact topics, and one publisher
+ * and one subscriber per topic, are supported.
+ * <p>
+ * File layout, all longs in native order, each index on its own pair of cache lines:
+ * <pre>
+ *   0  magic (written last by the subscriber)
+ *   8  capacity of the data area, a power of 2
+ *  16  publisher state: 0 = none, 1 = open, 2 = closed
+ *  24  subscriber state: 0 = none, 1 = open, 2 = closed
+ *  32  subscriber's pid, so a publisher can tell a ring left behind by a killed run
+ * 128  tail: total bytes written by the publisher
+ * 256  head: total bytes consumed by the subscriber
+ * 384  data: records of [int length][payload] aligned to 8 bytes, length -1 pads to the end
+ * </pre>
+ *
+ */
+public class ShmRingTransport implements Transport {
+
+    public static final String DEFAULT_DIR = "/dev/shm";
+    public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    private static final long MAGIC = 0x49504350_52494E47L;  // "IPCPRING"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int STATE_OFFSET = 16;
+    private static final int SUBSCRIBER_STATE_OFFSET = 24;
+    private static final int SUBSCRIBER_PID_OFFSET = 32;
+    private static final int TAIL_OFFSET = 128;
+    private static final int HEAD_OFFSET = 256;
+    private static final int HEADER_SIZE = 384;
+    private static final int RECORD_HEADER = 4;
+    private static final int PADDING = -1;
+    private static final long STATE_OPEN = 1;
+    private static final long STATE_CLOSED = 2;
+    private static final int MAX_TOPICS = 1 << 16;
+    private static final long CONNECT_TIMEOUT_MS = 30000;
+    private static final long SUBSCRIBER_STALL_NS = TimeUnit.SECONDS.toNanos(10);  // ring full and not drained for this long, the subscriber is gone
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final String dir;
+    private final int capacity;
+    private final boolean spin;
+    private final ByteBuffer rxBuffer;
+    private final Ring[] destinations = new Ring[MAX_TOPICS];
+    private int numDestinations = 0;
+    private volatile Ring[] subscriptions = new Ring[0];
+    private Listener listener;
+    private Thread rxThread;
+    private volatile boolean running = false;
+
+    public ShmRingTransport(String dir, int capacity, boolean spin, boolean useDirectByteBuffer) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of 2: " + capacity);
+        }
+        this.dir = dir;
+        this.capacity = capacity;
+        this.spin = spin;
+        rxBuffer = useDirectByteBuffer ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    @Override
+    public void connect(Listener listener) {
+        this.listener = listener;
+        System.out.printf(" Using shared memory ring buffers in %s (%s subscriber)%n",dir,spin?"spinning":"parking");
+        if (listener != null) {
+            running = true;
+            rxThread = new Thread(this::receiveLoop, "shm-ring-rx");
+            rxThread.setDaemon(true);
+            rxThread.start();
+            listener.onEvent("UP_NOTICE - shm ring transport");
+        }
+    }
+
+    @Override
+    public synchronized void subscribe(String topic) {
+        if (Ring.isWildcard(topic)) {
+            throw new IllegalArgumentException("shm transport only supports exact topics: " + topic);
+        }
+        Ring ring = Ring.create(fileFor(topic), capacity);
+        Ring[] newSubscriptions = Arrays.copyOf(subscriptions, subscriptions.length+1);
+        newSubscriptions[subscriptions.length] = ring;
+        subscriptions = newSubscriptions;  // volatile write publishes the ring to the rx thread
+    }
+
+    @Override
+    public int createDestination(String topic) {
+        if (numDestinations == MAX_TOPICS) {
+            throw new IllegalStateException("Too many destinations, max " + MAX_TOPICS);
+        }
+        destinations[numDestinations] = Ring.open(fileFor(topic));
+        return numDestinations++;
+    }
+
+    @Override
+    public int send(int destination, ByteBuffer payload) {
+        return destinations[destination].offer(payload) ? OK : FAIL;
+    }
+
+    @Override
+    public void close() {
+        for (int i=0;i<numDestinations;i++) {
+            destinations[i].setState(STATE_CLOSED);
+        }
+        if (rxThread != null) {
+            running = false;
+            try {
+                rxThread.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+        for (Ring ring : subscriptions) {
+            LONGS.setRelease(ring.buffer, SUBSCRIBER_STATE_OFFSET, STATE_CLOSED);  // a publisher still mapping it stops waiting on a full ring
+            ring.file.delete();
+        }
+    }
+
+    private File fileFor(String topic) {
+        return new File(dir, "ipcperf-" + topic.replace('/', '_') + ".ring");
+    }
+
+    private void receiveLoop() {
+        while (running) {
+            Ring[] rings = subscriptions;
+            int polled = 0;
+            for (int i=0;i<rings.length;i++) {
+                polled += rings[i].poll(listener, rxBuffer);
+            }
+            if (polled == 0) {
+                if (spin) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(1000);
+                }
+            }
+        }
+    }
+
+    /**
+     * One mapped file, used from one side only.
+     */
+    static class Ring {
+
+        final File file;
+        final MappedByteBuffer buffer;
+        final ByteBuffer view;  // for bulk copies without touching the mapped buffer's position
+        final int mask;
+        long position;  // tail for the publisher, head for the subscriber
+        long cachedLimit;  // last head seen by the publisher
+        boolean closeReported = false;
+        boolean subscriberGone = false;  // publisher side, every send fails from then on
+        final String closedEvent;  // built up front, so the receive thread doesn't allocate
+
+        private Ring(File file, MappedByteBuffer buffer, int capacity) {
+            this.file = file;
+            this.closedEvent = "DOWN_ERROR - publisher closed " + file.getName();
+            this.buffer = buffer;
+            this.view = buffer.duplicate().order(ByteOrder.nativeOrder());
+            this.mask = capacity - 1;
+        }
+
+        static boolean isWildcard(String topic) {
+            return topic.indexOf('*') >= 0 || topic.indexOf('>') >= 0;
+        }
+
+        /**
+         * Subscriber side: replaces the file with a new one, rather than truncating it under a
+         * publisher that has the old one mapped.
+         */
+        static Ring create(File file, int capacity) {
+            file.delete();
+            MappedByteBuffer buffer = map(file, HEADER_SIZE + capacity, true);
+            LONGS.setRelease(buffer, MAGIC_OFFSET, 0L);
+            buffer.putLong(CAPACITY_OFFSET, capacity);
+            buffer.putLong(STATE_OFFSET, 0L);
+            buffer.putLong(TAIL_OFFSET, 0L);
+            buffer.putLong(HEAD_OFFSET, 0L);
+            buffer.putLong(SUBSCRIBER_STATE_OFFSET, STATE_OPEN);
+            buffer.putLong(SUBSCRIBER_PID_OFFSET, ProcessHandle.current().pid());
+            LONGS.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+            return new Ring(file, buffer, capacity);
+        }
+
+        /**
+         * Publisher side: waits for a live subscriber to have created the file.  One left behind
+         * by a killed subscriber is skipped until the next subscriber replaces it.
+         */
+        static Ring open(File file) {
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+            MappedByteBuffer header = null;  // the magic is polled on this, mapped again only when the file is replaced
+            Object mappedKey = null;
+            while (header == null || (long)LONGS.getAcquire(header, MAGIC_OFFSET) != MAGIC
+                    || !ProcessHandle.of(header.getLong(SUBSCRIBER_PID_OFFSET)).map(ProcessHandle::isAlive).orElse(false)) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("No subscriber created " + file + " within " + CONNECT_TIMEOUT_MS + "ms");
+                }
+                Object key = fileKey(file);
+                if (key != null && !key.equals(mappedKey) && file.length() >= HEADER_SIZE) {  // a new file, or the first
+                    header = map(file, HEADER_SIZE, false);
+                    mappedKey = key;
+                    continue;
+                }
+                LockSupport.parkNanos(10000000);
+            }
+            int capacity = (int)header.getLong(CAPACITY_OFFSET);
+            MappedByteBuffer buffer = map(file, HEADER_SIZE + capacity, false);
+            Ring ring = new Ring(file, buffer, capacity);
+            if ((long)LONGS.getAcquire(buffer, STATE_OFFSET) == STATE_OPEN) {
+                throw new IllegalStateException(file + " already has a publisher, shm rings are single-producer");
+            }
+            ring.position = (long)LONGS.getAcquire(buffer, TAIL_OFFSET);
+            ring.setState(STATE_OPEN);
+            return ring;
+        }
+
+        /**
+         * @return what identifies the file on disk (the inode on Linux), or null if it doesn't exist
+         */
+        private static Object fileKey(File file) {
+            try {
+                return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private static MappedByteBuffer map(File file, int size, boolean truncate) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (truncate) {
+                    raf.setLength(0);
+                    raf.setLength(size);
+                }
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.nativeOrder());
+                return buffer;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map " + file, e);
+            }
+        }
+
+        void setState(long state) {
+            LONGS.setRelease(buffer, STATE_OFFSET, state);
+        }
+
+        /**
+         * Publisher side: copies the payload in, spinning while the ring is full.  Gives up when the
+         * subscriber has closed, or hasn't drained anything for ten seconds (e.g. it crashed).
+         * @return false if the payload can never fit, or there's no subscriber to take it
+         */
+        boolean offer(ByteBuffer payload) {
+            int length = payload.remaining();
+            int capacity = mask + 1;
+            int recordLength = (RECORD_HEADER + length + 7) & ~7;
+            if (recordLength > capacity || subscriberGone) {
+                return false;
+            }
+            long tail = position;
+            int offset = (int)(tail & mask);
+            int toEnd = capacity - offset;
+            int required = recordLength <= toEnd ? recordLength : toEnd + recordLength;
+            long stalledSince = 0;  // 0 = not waiting yet
+            while (capacity - (tail - cachedLimit) < required) {
+                long head = (long)LONGS.getAcquire(buffer, HEAD_OFFSET);
+                if (head != cachedLimit) {
+                    cachedLimit = head;
+                    stalledSince = 0;
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (stalledSince == 0) {
+                    stalledSince = now;
+                } else if ((long)LONGS.getAcquire(buffer, SUBSCRIBER_STATE_OFFSET) != STATE_OPEN || now - stalledSince > SUBSCRIBER_STALL_NS) {
+                    subscriberGone = true;
+                    return false;
+                }
+                Thread.onSpinWait();
+            }
+            if (recordLength > toEnd) {
+                buffer.putInt(HEADER_SIZE + offset, PADDING);
+                tail += toEnd;
+                offset = 0;
+            }
+            buffer.putInt(HEADER_SIZE + offset, length);
+            int start = payload.position();
+            view.limit(HEADER_SIZE + offset + RECORD_HEADER + length).position(HEADER_SIZE + offset + RECORD_HEADER);
+            view.put(payload);
+            payload.position(start);
+            tail += recordLength;
+            position = tail;
+            LONGS.setRelease(buffer, TAIL_OFFSET, tail);
+            return true;
+        }
+
+        /**
+         * Subscriber side: copies everything published so far into rxBuffer, one message at a time, for the listener.
+         * @return number of messages delivered
+         */
+        int poll(Listener listener, ByteBuffer rxBuffer) {
+            long head = position;
+            long tail = (long)LONGS.getAcquire(buffer, TAIL_OFFSET);
+            if (head == tail) {
+                long state = (long)LONGS.getAcquire(buffer, STATE_OFFSET);
+                if (state == STATE_CLOSED) {
+                    if (!closeReported) {
+                        closeReported = true;
+                        listener.onEvent(closedEvent);
+                    }
+                } else {
+                    closeReported = false;
+                }
+                return 0;
+            }
+            int count = 0;
+            while (head < tail) {
+                int offset = (int)(head & mask);
+                int length = buffer.getInt(HEADER_SIZE + offset);
+                if (length == PADDING) {
+                    head += (mask + 1) - offset;
+                    continue;
+                }
+                long receivedTime = System.nanoTime();
+                view.limit(HEADER_SIZE + offset + RECORD_HEADER + length).position(HEADER_SIZE + offset + RECORD_HEADER);
+                rxBuffer.clear();
+                rxBuffer.put(view);
+                rxBuffer.flip();
+                listener.onMessage(receivedTime, rxBuffer);
+                head += (RECORD_HEADER + length + 7) & ~7;
+                count++;
+            }
+            position = head;
+            LONGS.setRelease(buffer, HEAD_OFFSET, head);
+            return count;
+        }
+    }
+}
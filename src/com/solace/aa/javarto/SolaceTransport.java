@@ -0,0 +1,171 @@
+package com.solace.aa.javarto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.SolEnum.SessionEventCode;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.event.SessionEventCallback;
+import com.solacesystems.solclientj.core.handle.ContextHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.IPCSupport;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Topic;
+
+/**
+ *
+ * SolaceTransport.java
+ *
+ * {@link Transport} over the Java RTO API: one context, one multi-point session.
+ * With a listen:// host this runs over IPC shared memory, which needs the IPC-enabled library.
+ *
+ */
+public class SolaceTransport implements Transport, MessageCallback, SessionEventCallback {
+
+    private static final int MAX_DESTINATIONS = 1 << 16;
+    private static int openTransports = 0;  // the API is initialized once per process, and closed with the last transport
+
+    private final SessionHandle sessionHandle = Solclient.Allocator.newSessionHandle();
+    private final ContextHandle contextHandle = Solclient.Allocator.newContextHandle();
+    private final MessageHandle txMessageHandle = Solclient.Allocator.newMessageHandle();
+    private final NativeDestinationHandle[] destinations = new NativeDestinationHandle[MAX_DESTINATIONS];
+    private int numDestinations = 0;
+    private int boundDestination = -1;  // what txMessageHandle is currently addressed to
+    private final String[] sessionPropsOrig;
+    private final boolean ipcThreadSpinProperty;
+    private final ByteBuffer rxBuffer;
+    private Listener listener;
+
+    public SolaceTransport(String[] sessionProps, boolean ipcThreadSpinProperty, boolean useDirectByteBuffer) {
+        this.sessionPropsOrig = sessionProps;
+        this.ipcThreadSpinProperty = ipcThreadSpinProperty;
+        rxBuffer = useDirectByteBuffer ? ByteBuffer.allocateDirect(10000) : ByteBuffer.allocate(10000);
+    }
+
+    @Override
+    public void connect(Listener listener) {
+        this.listener = listener;
+        int rc;
+        synchronized (SolaceTransport.class) {
+            if (openTransports++ == 0) {
+                // Init
+                System.out.println(" Initializing the Java RTO Messaging API...");
+                rc = Solclient.init(new String[0]);
+                assertReturnCode("Solclient.init()", rc);
+                // We don't care for any output unless it is an error
+                Solclient.setLogLevel(Level.INFO);
+            }
+        }
+        // Context
+        System.out.println(" Creating a context ...");
+        rc = Solclient.createContextForHandle(contextHandle,ipcThreadSpinProperty ?
+                new String[]{IPCSupport.CONTEXT_PROPERTIES.IPC_SHM_SPIN,"-1","CONTEXT_CREATE_THREAD","1"} :
+                new String[0]);
+        assertReturnCode("Solclient.createContext()", rc);
+        // Session
+        System.out.println(" Creating a session ...");
+        // Aaron's mods
+        List<String> sessionProperties = new ArrayList<String>(Arrays.asList(sessionPropsOrig));
+        sessionProperties.add(IPCSupport.SESSION_PROPERTIES.MULTIPOINT);
+        sessionProperties.add(SolEnum.BooleanValue.ENABLE);
+        String[] sessionProps = sessionProperties.toArray(new String[0]);
+        rc = contextHandle.createSessionForHandle(sessionHandle,sessionProps,this,this);
+        assertReturnCode("contextHandle.createSession()", rc);
+        System.out.println("Session Properties: "+Arrays.toString(sessionProps));
+        // Connect
+        System.out.println(" Connecting session ...");
+        rc = sessionHandle.connect();
+        assertReturnCode("sessionHandle.connect()", rc);
+        // Allocate the message
+        rc = Solclient.createMessageForHandle(txMessageHandle);
+        assertReturnCode("Solclient.createMessage()", rc);
+    }
+
+    @Override
+    public void subscribe(String topicName) {
+        Topic topic = Solclient.Allocator.newTopic(topicName);
+        int rc = sessionHandle.subscribe(topic,SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+        assertReturnCode("sessionHandle.subscribe()", rc);
+    }
+
+    @Override
+    public int createDestination(String topicName) {
+        if (numDestinations == MAX_DESTINATIONS) {
+            throw new IllegalStateException("Too many destinations, max " + MAX_DESTINATIONS);
+        }
+        NativeDestinationHandle topicHandle = Solclient.Allocator.newNativeDestinationHandle();
+        int rc = Solclient.createNativeDestinationForHandle(topicHandle, Solclient.Allocator.newTopic(topicName));
+        assertReturnCode("createNativeDestinationForHandle()", rc);
+        destinations[numDestinations] = topicHandle;
+        return numDestinations++;
+    }
+
+    @Override
+    public int send(int destination, ByteBuffer payload) {
+        if (destination != boundDestination) {  // the message keeps its destination between sends
+            txMessageHandle.setDestination(destinations[destination]);
+            boundDestination = destination;
+        }
+        if (payload.hasRemaining()) {
+            txMessageHandle.setBinaryAttachment(payload);
+        }
+        return sessionHandle.send(txMessageHandle);
+    }
+
+    @Override
+    public void close() {
+        destroy(txMessageHandle);
+        for (int i=0;i<numDestinations;i++) {
+            destroy(destinations[i]);
+        }
+        if (sessionHandle.isBound()) {
+            sessionHandle.disconnect();
+        }
+        destroy(sessionHandle);
+        destroy(contextHandle);
+        synchronized (SolaceTransport.class) {
+            if (--openTransports == 0) {
+                Solclient.fini();
+            }
+        }
+    }
+
+    @Override
+    public void onEvent(SessionHandle sessionHandle) {
+        if (listener != null) {
+            listener.onEvent(SessionEventCode.toString(sessionHandle.getSessionEvent().getSessionEventCode())+" - "+sessionHandle.getSessionEvent().getInfo());
+        }
+    }
+
+    @Override
+    public void onMessage(Handle handle) {
+        long receivedTime = System.nanoTime();
+        if (listener != null) {
+            MessageSupport messageSupport = (MessageSupport)handle;
+            messageSupport.getRxMessage().getBinaryAttachment(rxBuffer);
+            rxBuffer.flip();
+            listener.onMessage(receivedTime, rxBuffer);
+            rxBuffer.clear();
+        }
+    }
+
+    private static void destroy(Handle handle) {
+        if (handle != null && handle.isBound()) {
+            handle.destroy();
+        }
+    }
+
+    private static void assertReturnCode(String operation, int rc) {
+        if (rc != SolEnum.ReturnCode.OK) {
+            throw new IllegalStateException(operation + " returned " + SolEnum.ReturnCode.toString(rc));
+        }
+    }
+}
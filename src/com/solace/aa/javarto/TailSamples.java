@@ -0,0 +1,92 @@
+package com.solace.aa.javarto;
+
+/**
+ *
+ * TailSamples.java
+ *
+ * Keeps the K largest latencies with their send and receive times, so the worst ones can be
+ * lined up against {@link HiccupMeter} pauses afterwards.  Once it's full, a sample only costs
+ * a compare unless it's bigger than the smallest one kept.
+ *
+ */
+public class TailSamples {
+
+    private final long[] latency;
+    private final long[] sentTs;
+    private final long[] receivedTs;
+    private int size = 0;
+    private int minIndex = 0;  // the smallest one kept, which the next bigger sample replaces
+
+    public TailSamples(int capacity) {
+        latency = new long[capacity];
+        sentTs = new long[capacity];
+        receivedTs = new long[capacity];
+    }
+
+    public void record(long sent, long received) {
+        long value = received - sent;
+        if (size < latency.length) {
+            latency[size] = value;
+            sentTs[size] = sent;
+            receivedTs[size] = received;
+            if (value < latency[minIndex]) {
+                minIndex = size;
+            }
+            size++;
+        } else if (value > latency[minIndex]) {
+            latency[minIndex] = value;
+            sentTs[minIndex] = sent;
+            receivedTs[minIndex] = received;
+            for (int i=0;i<size;i++) {
+                if (latency[i] < latency[minIndex]) {
+                    minIndex = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the largest of both.
+     */
+    public void add(TailSamples other) {
+        for (int i=0;i<other.size;i++) {
+            record(other.sentTs[i], other.receivedTs[i]);
+        }
+    }
+
+    /**
+     * Sorts biggest first, for reading with the getters.
+     */
+    public void sort() {
+        for (int i=1;i<size;i++) {  // insertion sort, K is small
+            long l = latency[i], s = sentTs[i], r = receivedTs[i];
+            int j = i - 1;
+            while (j >= 0 && latency[j] < l) {
+                latency[j+1] = latency[j];
+                sentTs[j+1] = sentTs[j];
+                receivedTs[j+1] = receivedTs[j];
+                j--;
+            }
+            latency[j+1] = l;
+            sentTs[j+1] = s;
+            receivedTs[j+1] = r;
+        }
+        minIndex = size - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getLatency(int i) {
+        return latency[i];
+    }
+
+    public long getSentTs(int i) {
+        return sentTs[i];
+    }
+
+    public long getReceivedTs(int i) {
+        return receivedTs[i];
+    }
+}
@@ -0,0 +1,75 @@
+package com.solace.aa.javarto;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ *
+ * Transport.java
+ *
+ * The send/receive/subscribe calls used by the perf tests, so that the same
+ * measurement loops can be pointed at the Solace IPC session or at the local
+ * shared-memory ring buffer (which gives the raw cross-process floor on the box).
+ * <p>
+ * Return codes from {@link #send(int, ByteBuffer)} follow the Solace numbering
+ * ({@code SolEnum.ReturnCode}): 0 is OK, 1 is WOULD_BLOCK, -1 is FAIL.
+ *
+ */
+public interface Transport {
+
+    int OK = 0;
+    int WOULD_BLOCK = 1;
+    int FAIL = -1;
+
+    /**
+     * Callbacks for the receiving side.  Both are invoked on the transport's own receive thread.
+     */
+    interface Listener {
+
+        /**
+         * @param receivedTime System.nanoTime() taken as soon as the transport saw the message
+         * @param payload the message body, position 0 and limit set to its length... only valid for the duration of the call
+         */
+        void onMessage(long receivedTime, ByteBuffer payload);
+
+        /**
+         * Session level events, e.g. UP_NOTICE or the publisher going away
+         */
+        void onEvent(String event);
+    }
+
+    /**
+     * Connects the transport. The listener can be null for a send-only transport.
+     */
+    void connect(Listener listener);
+
+    void subscribe(String topic);
+
+    /**
+     * Pre-creates a destination so that nothing gets allocated on the send path.
+     * @return the destination index to pass to {@link #send(int, ByteBuffer)}
+     */
+    int createDestination(String topic);
+
+    /**
+     * Sends the remaining bytes of the payload.  Position and limit of the payload are left unchanged.
+     */
+    int send(int destination, ByteBuffer payload);
+
+    void close();
+
+    /**
+     * Builds the transport selected by -t on the command line [default: solace].
+     */
+    static Transport fromArgs(Map<String, String> cmdLineArgs, String[] sessionProps, boolean ipcThreadSpin, boolean useDirectByteBuffer) {
+        String name = cmdLineArgs.containsKey("-t") ? cmdLineArgs.get("-t") : "solace";
+        if ("shm".equals(name)) {
+            String dir = cmdLineArgs.containsKey("-shmdir") ? cmdLineArgs.get("-shmdir") : ShmRingTransport.DEFAULT_DIR;
+            int capacity = cmdLineArgs.containsKey("-shmsize") ? Integer.parseInt(cmdLineArgs.get("-shmsize")) : ShmRingTransport.DEFAULT_CAPACITY;
+            return new ShmRingTransport(dir, capacity, ipcThreadSpin, useDirectByteBuffer);
+        } else if ("solace".equals(name)) {
+            return new SolaceTransport(sessionProps, ipcThreadSpin, useDirectByteBuffer);
+        }
+        throw new IllegalArgumentException("Unknown transport '" + name + "', expected solace or shm");
+    }
+}
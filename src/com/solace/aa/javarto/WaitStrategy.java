@@ -0,0 +1,58 @@
+package com.solace.aa.javarto;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * WaitStrategy.java
+ *
+ * What the publisher's pacing loop does while it waits for the next slot in the schedule.
+ * SPIN is the original raw busy-wait; the others trade wake-up latency for a quieter core.
+ *
+ */
+enum WaitStrategy {
+
+    /** busy-spin on System.nanoTime() */
+    SPIN {
+        @Override
+        void idle(long nanosLeft) {
+        }
+    },
+    /** busy-spin with Thread.onSpinWait(), e.g. PAUSE on x86, kinder to a hyper-thread sibling */
+    ONSPINWAIT {
+        @Override
+        void idle(long nanosLeft) {
+            Thread.onSpinWait();
+        }
+    },
+    /** Thread.yield(), gives the core away if anything else wants it */
+    YIELD {
+        @Override
+        void idle(long nanosLeft) {
+            Thread.yield();
+        }
+    },
+    /** LockSupport.parkNanos() for the time left, at the mercy of the timer slack */
+    PARK {
+        @Override
+        void idle(long nanosLeft) {
+            LockSupport.parkNanos(nanosLeft);
+        }
+    };
+
+    /**
+     * One override per strategy rather than a switch, which would load its lookup class on the publisher thread at the first wait.
+     */
+    abstract void idle(long nanosLeft);
+
+    /**
+     * @param name case insensitive, e.g. "onspinwait"
+     */
+    static WaitStrategy fromName(String name) {
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown wait strategy " + name + ", use spin, onspinwait, yield or park");
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.solace.aa.javarto;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ *
+ * WarmupDetector.java
+ *
+ * Decides when the run is warm for -w auto: the interval p50 and p99 have stopped moving, and
+ * the JIT has gone quiet (CompilationMXBean total compilation time grew by less than 2% of the
+ * interval; it never quite stops, the reporting thread keeps it ticking over), both for the last
+ * few intervals in a row.  Fed by the {@link IntervalReporter} thread; the receive
+ * threads only read {@link #isWarm()}.
+ *
+ */
+public class WarmupDetector {
+
+    static final int STABLE_INTERVALS = 3;
+    static final double QUIET_COMPILATION = 0.02;
+    static final double DEFAULT_TOLERANCE = 0.2;  // each interval's p50 and p99 within 20% of the average of the window
+
+    private final double tolerance;
+    private final long quietCompilationMs;
+    private final CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+    private final long[] p50s = new long[STABLE_INTERVALS];
+    private final long[] p99s = new long[STABLE_INTERVALS];
+    private int stableIntervals = 0;  // how many intervals in a row were busy with the JIT quiet
+    private long lastCompilationTime = -1;
+    private volatile boolean warm = false;
+
+    /**
+     * @param intervalMs how long each interval is
+     * @param tolerance how far, as a fraction, each interval's p50 and p99 can be from the average of the window
+     */
+    public WarmupDetector(long intervalMs, double tolerance) {
+        this.quietCompilationMs = (long)(intervalMs * QUIET_COMPILATION);
+        this.tolerance = tolerance;
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * @return the total compilation time in ms so far, or -1 where the JVM doesn't say
+     */
+    private long compilationTime() {
+        return compilation != null && compilation.isCompilationTimeMonitoringSupported() ? compilation.getTotalCompilationTime() : -1;
+    }
+
+    /**
+     * @param interval everything received in the interval that just ended
+     * @return true the first time the run counts as warm
+     */
+    boolean onInterval(LatencyHistogram interval) {
+        if (warm) {
+            return false;
+        }
+        long compilationTime = compilationTime();
+        boolean compiling = compilationTime >= 0 && (lastCompilationTime < 0 || compilationTime - lastCompilationTime > quietCompilationMs);
+        lastCompilationTime = compilationTime;
+        if (interval.getTotalCount() == 0 || compiling) {
+            stableIntervals = 0;
+            return false;
+        }
+        p50s[stableIntervals % STABLE_INTERVALS] = interval.getValueAtPercentile(50.0);
+        p99s[stableIntervals % STABLE_INTERVALS] = interval.getValueAtPercentile(99.0);
+        stableIntervals++;
+        if (stableIntervals >= STABLE_INTERVALS && settled(p50s) && settled(p99s)) {
+            warm = true;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean settled(long[] values) {
+        double average = 0;
+        for (long value : values) {
+            average += value;
+        }
+        average /= values.length;
+        for (long value : values) {
+            if (Math.abs(value - average) > average * tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+}